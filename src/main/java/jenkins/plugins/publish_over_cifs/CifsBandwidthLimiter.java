@@ -0,0 +1,152 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jenkins.util.SystemProperties;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket that limits the bytes per second written to one server by every client in the JVM.
+ * <p>
+ * Every host configuration for the server shares the bucket, at the lowest rate, other than 0, that any of them sets,
+ * so configurations cannot overwrite each other's rate and one with no limit of its own cannot get round the bucket.
+ * <p>
+ * The bucket fills at the configured rate and holds up to {@link #DEFAULT_BURST_MILLIS} worth of it, so a quiet host can
+ * take a short burst at full speed. A write that finds too few tokens takes them anyway, leaving the bucket in debt, and
+ * sleeps until the debt would have been repaid. Writers that arrive later queue behind that debt, so every writer gets
+ * its turn in the order it asked, and nobody spins waiting for tokens.
+ */
+final class CifsBandwidthLimiter {
+
+    static final long DEFAULT_BURST_MILLIS = SystemProperties.getLong(CifsBandwidthLimiter.class.getName() + ".burstMillis", 2000L);
+    private static final long THROUGHPUT_WINDOW = TimeUnit.SECONDS.toNanos(5);
+    private static final Map<String, CifsBandwidthLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    /**
+     * The limiter shared by everything that writes to the host, set to the given rate, which is the same for every host
+     * configuration of the host.
+     */
+    static CifsBandwidthLimiter forHost(final String host, final long bytesPerSecond) {
+        return LIMITERS.compute(host, (key, limiter) -> {
+            if (limiter == null) return new CifsBandwidthLimiter(bytesPerSecond, DEFAULT_BURST_MILLIS, System::nanoTime);
+            limiter.setRate(bytesPerSecond);
+            return limiter;
+        });
+    }
+
+    private final long burstMillis;
+    private final LongSupplier nanoTime;
+    private long bytesPerSecond;
+    private double capacity;
+    private double tokens;
+    private long lastRefill;
+    private long windowStart;
+    private long windowBytes;
+    private long throughput;
+
+    CifsBandwidthLimiter(final long bytesPerSecond, final long burstMillis, final LongSupplier nanoTime) {
+        this.burstMillis = burstMillis;
+        this.nanoTime = nanoTime;
+        lastRefill = nanoTime.getAsLong();
+        windowStart = lastRefill;
+        setRate(bytesPerSecond);
+        tokens = capacity;
+    }
+
+    synchronized void setRate(final long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(1, bytesPerSecond);
+        capacity = Math.max(1, this.bytesPerSecond * burstMillis / 1000.0);
+        tokens = Math.min(tokens, capacity);
+    }
+
+    synchronized long getRate() { return bytesPerSecond; }
+
+    /**
+     * Take the tokens for a write.
+     * @return how long, in nanoseconds, the caller must wait before writing
+     */
+    synchronized long reserve(final int bytes) {
+        final long now = nanoTime.getAsLong();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * bytesPerSecond / (double) TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+        tokens -= bytes;
+        record(bytes, now);
+        return tokens >= 0 ? 0 : (long) (-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+    }
+
+    void acquire(final int bytes) throws InterruptedIOException {
+        final long wait = reserve(bytes);
+        if (wait <= 0) return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException(ie.getLocalizedMessage()).initCause(ie);
+        }
+    }
+
+    /**
+     * Bytes per second written to the host, by every client, over the last few seconds.
+     */
+    synchronized long getThroughput() {
+        final long elapsed = nanoTime.getAsLong() - windowStart;
+        if (throughput == 0 && elapsed > 0) return windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+        return throughput;
+    }
+
+    private void record(final int bytes, final long now) {
+        final long elapsed = now - windowStart;
+        if (elapsed >= THROUGHPUT_WINDOW) {
+            throughput = windowBytes * TimeUnit.SECONDS.toNanos(1) / elapsed;
+            windowStart = now;
+            windowBytes = 0;
+        }
+        windowBytes += bytes;
+    }
+
+    OutputStream throttle(final OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(final int b) throws IOException {
+                acquire(1);
+                out.write(b);
+            }
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                acquire(len);
+                out.write(b, off, len);
+            }
+        };
+    }
+
+}
@@ -32,6 +32,7 @@ import hudson.model.AbstractProject;
 import hudson.model.BuildListener;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import jenkins.plugins.publish_over.BPInstanceConfig;
 import jenkins.plugins.publish_over.BPPlugin;
@@ -40,6 +41,8 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -56,6 +59,15 @@ public class CifsBuilderPlugin extends Builder {
                                                 paramPublish);
     }
 
+    public int getMaxConcurrentPublishers() {
+        return delegate.getMaxConcurrentPublishers();
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPublishers(final int maxConcurrentPublishers) {
+        delegate.setMaxConcurrentPublishers(maxConcurrentPublishers);
+    }
+
     @Override
     public boolean perform(final AbstractBuild<?, ?> build, final Launcher launcher, final BuildListener listener)
                     throws InterruptedException, IOException {
@@ -109,6 +121,9 @@ public class CifsBuilderPlugin extends Builder {
         public CifsPublisherPlugin.Descriptor getPublisherDescriptor() {
             return  Jenkins.get().getDescriptorByType(CifsPublisherPlugin.Descriptor.class);
         }
+        public FormValidation doCheckMaxConcurrentPublishers(@QueryParameter final String value) {
+            return getPublisherDescriptor().doCheckMaxConcurrentPublishers(value);
+        }
     }
 
 }
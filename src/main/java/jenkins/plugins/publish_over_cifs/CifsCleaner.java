@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+
+/**
+ * Empties remote directories, either by deleting what is in them, in parallel when the client has parallel streams,
+ * or by renaming the directory out of the way for {@link CifsTombstoneReaper} to delete in the background.
+ */
+final class CifsCleaner {
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final CifsDirectoryCache directories;
+    private final CifsResumeState resumeState;
+
+    CifsCleaner(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+                final CifsDirectoryCache directories) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.directories = directories;
+        this.resumeState = CifsResumeState.get(buildInfo);
+    }
+
+    /**
+     * Delete everything in the directory where it is.
+     */
+    void empty(final String directoryUrl) throws IOException {
+        final SmbFile[] files = helper.listFiles(client.createFile(directoryUrl), directoryUrl);
+        if (files == null) throw new BapPublisherException(Messages.exception_listFilesReturnedNull(helper.hideUserInfo(directoryUrl)));
+        delete(files, directoryUrl);
+    }
+
+    /**
+     * Delete the files and directories, all of which are below the given directory.
+     */
+    void delete(final SmbFile[] files, final String directoryUrl) throws IOException {
+        if (client.getParallelism() > 1) {
+            deleteInParallel(files, directoryUrl);
+            return;
+        }
+        for (final SmbFile file : files) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_delete(helper.hideUserInfo(file.getCanonicalPath())));
+            helper.delete(file);
+        }
+    }
+
+    private void deleteInParallel(final SmbFile[] files, final String directoryUrl) throws IOException {
+        final CifsTreeDeleter deleter = new CifsTreeDeleter(buildInfo, helper, client.getParallelism());
+        final List<CifsUploadQueue.Failure> failures;
+        try {
+            failures = deleter.delete(files);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(ie.getLocalizedMessage());
+        }
+        buildInfo.println(Messages.console_clean_deleted(deleter.getDeleted(), helper.hideUserInfo(directoryUrl)));
+        if (failures.isEmpty()) return;
+        for (final CifsUploadQueue.Failure failure : failures) {
+            buildInfo.println(Messages.console_clean_failed(helper.hideUserInfo(failure.getUrl()),
+                                                            failure.getCause().getLocalizedMessage()));
+        }
+        // listings, cached directories and what was written below the directory are stale whatever happened
+        client.forgetListingsBelow(directoryUrl);
+        directories.removeBelow(directoryUrl);
+        resumeState.forgetBelow(directoryUrl);
+        final CifsUploadQueue.Failure first = failures.get(0);
+        throw new BapPublisherException(Messages.exception_clean_failed(failures.size(), helper.hideUserInfo(first.getUrl()),
+                                                                        first.getCause().getLocalizedMessage()), first.getCause());
+    }
+
+    /**
+     * Rename the directory being cleaned out of the way and put an empty one in its place, leaving the old contents to
+     * be deleted in the background along with any tombstones that earlier cleans left behind.
+     * @return false if the directory could not be moved and must be emptied where it is
+     */
+    boolean moveAside(final String directoryUrl) {
+        // the root of the host configuration is never renamed
+        if (directoryUrl.length() <= baseUrl.length()) return false;
+        final String parentUrl = CifsStaging.parentOf(directoryUrl);
+        final String name = CifsStaging.nameOf(directoryUrl);
+        final String tombstoneUrl = parentUrl + CifsTombstoneReaper.tombstoneName(name) + '/';
+        final SmbFile tombstone = client.createFile(tombstoneUrl);
+        try {
+            client.createFile(directoryUrl).renameTo(tombstone);
+        } catch (final SmbException smbe) {
+            buildInfo.println(Messages.console_clean_renameFailed(helper.hideUserInfo(directoryUrl), smbe.getLocalizedMessage()));
+            return false;
+        }
+        if (buildInfo.isVerbose()) buildInfo.println(Messages.console_clean_renamed(helper.hideUserInfo(tombstoneUrl)));
+        // the directory is new, so nothing that was known about what was below it still holds
+        directories.removeTree(directoryUrl);
+        helper.mkdir(client.createFile(directoryUrl), directoryUrl);
+        directories.add(directoryUrl);
+        client.reap(tombstoneUrl, tombstone);
+        try {
+            for (final SmbFile leftover : client.createFile(parentUrl).listFiles(CifsTombstoneReaper.tombstoneWildcard(name))) {
+                client.reap(parentUrl + leftover.getName(), leftover);
+            }
+        } catch (final SmbException smbe) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_clean_sweepFailed(helper.hideUserInfo(parentUrl), smbe.getLocalizedMessage()));
+        }
+        return true;
+    }
+
+}
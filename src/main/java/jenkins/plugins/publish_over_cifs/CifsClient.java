@@ -25,104 +25,770 @@
 package jenkins.plugins.publish_over_cifs;
 
 import hudson.FilePath;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
 import jcifs.CIFSContext;
+import jcifs.CIFSException;
+import jcifs.SmbConstants;
+import jcifs.SmbRandomAccess;
 import jcifs.smb.SmbFile;
 import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPDefaultClient;
 import jenkins.plugins.publish_over.BapPublisherException;
-import org.apache.commons.io.IOUtils;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.StringUtils;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Publishes to a share for publish-over, leaving each feature of a transfer set to a collaborator: {@link CifsUploader}
+ * writes the files, {@link CifsStaging}, {@link CifsMirror}, {@link CifsDeduplicator} and {@link CifsRemoteCopy} take
+ * care of the options of the same name, {@link CifsCleaner} empties remote directories and
+ * {@link CifsDirectoryCreator} creates the directories of the transfer set ahead of the files.
+ */
 public class CifsClient extends BPDefaultClient<CifsTransfer> {
 
+    public static final long DEFAULT_LARGE_FILE_THRESHOLD =
+            SystemProperties.getLong(CifsClient.class.getName() + ".largeFileThreshold", 64L * 1024 * 1024);
+    static final String STAGING_PREFIX = ".cifs-staging-";
+    /** staging directories of other builds that have not been touched for this long are taken to be abandoned */
+    public static final long DEFAULT_STAGING_ABANDONED_MILLIS =
+            SystemProperties.getLong(CifsClient.class.getName() + ".stagingAbandonedMillis", TimeUnit.HOURS.toMillis(24));
+
     private final CifsHelper helper = new CifsHelper();
     private final BPBuildInfo buildInfo;
     private final String baseUrl;
     private String context;
     private int bufferSize;
     final private CIFSContext cifsContext;
+    private final CifsContextPool.Lease lease;
+    private int parallelism;
+    private CifsUploadQueue uploads;
+    /** directory url -> (file name -> [size, last modified]), each remote directory is only listed once */
+    private final Map<String, Map<String, long[]>> listings = new HashMap<>();
+    private int skippedFiles;
+    private long skippedBytes;
+    private String transferRoot;
+    private CifsManifest manifest;
+    private final CifsResumeState resumeState;
+    /** what this client has written in the transfer set that it is publishing, for a retry to carry on from */
+    private CifsResumeState.Progress resume;
+    /** the transfer sets begun by this client, and so the index of the next one unless the publisher gave one */
+    private int transferSets;
+    /** every transfer set begun by this client, that a failed attempt may have left part written */
+    private final List<CifsResumeState.Progress> begun = new ArrayList<>();
+    private final CifsDirectoryCache directories;
+    /** directories that changeDirectory found missing, so that makeDirectory need not check them again */
+    private final Set<String> missingDirectories = new HashSet<>();
+    private boolean cleanInBackground;
+    /** a transfer set has begun and not yet ended */
+    private boolean transferring;
+    private final CifsUploader uploader;
+    private final CifsStaging staging;
+    private final CifsCleaner cleaner;
+    private final CifsMirror mirror;
+    private final CifsDeduplicator deduplicator;
+    private final CifsRemoteCopy remoteCopy;
+    private final CifsDirectoryCreator directoryCreator;
+    /** other shares that are sent everything that this one is, from the same read of each file */
+    private List<CifsClient> fanOut = Collections.emptyList();
+    private ExecutorService fanOutExecutor;
+    private CifsHostLimits.Permit publishPermit;
+    /** what this client did since it last handed its figures to the sink */
+    private final CifsMetrics.Sample metrics = new CifsMetrics.Sample();
+    private String metricsHost;
+    private CifsMetrics.Sink metricsSink;
+    private CifsTransferReportAction.Sink reportSink;
+    private CifsTransferReportAction.Collector report;
+    /** time taken to connect, reported with the first transfer set */
+    private long connectMillis;
 
     public CifsClient(final CIFSContext cifsContext, final BPBuildInfo buildInfo, final String baseUrl, final int bufferSize) {
+        this(CifsContextPool.unpooled(cifsContext), buildInfo, baseUrl, bufferSize, 1);
+    }
+
+    public CifsClient(final CifsContextPool.Lease lease, final BPBuildInfo buildInfo, final String baseUrl, final int bufferSize,
+                      final int parallelism) {
         this.buildInfo = buildInfo;
         this.baseUrl = baseUrl;
         this.bufferSize = bufferSize;
         context = baseUrl;
-        this.cifsContext = cifsContext;
+        this.lease = lease;
+        this.cifsContext = lease.getContext();
+        this.parallelism = Math.max(1, parallelism);
+        this.resumeState = CifsResumeState.get(buildInfo);
+        this.resume = resumeState.of(baseUrl, transferSet());
+        this.directories = CifsDirectoryCache.get(buildInfo);
+        this.uploader = new CifsUploader(this, buildInfo, helper, baseUrl, bufferSize, this.parallelism);
+        this.staging = new CifsStaging(this, buildInfo, helper, baseUrl, directories);
+        this.cleaner = new CifsCleaner(this, buildInfo, helper, baseUrl, directories);
+        this.mirror = new CifsMirror(this, buildInfo, helper, baseUrl, directories, cleaner);
+        this.deduplicator = new CifsDeduplicator(this, buildInfo, helper, baseUrl, uploader);
+        this.remoteCopy = new CifsRemoteCopy(this, buildInfo, helper, baseUrl, directories, mirror);
+        this.directoryCreator = new CifsDirectoryCreator(this, buildInfo, helper, baseUrl, directories);
+    }
+
+    /**
+     * @return the index of the transfer set being published, which the publisher gives when its transfer sets publish at
+     * the same time, each with a client of its own
+     */
+    private int transferSet() {
+        final Integer given = (Integer) buildInfo.get(CifsPublisher.CTX_KEY_TRANSFER_SET);
+        return given == null ? transferSets : given;
     }
 
     protected String getContext() { return context; }
 
     CIFSContext getCifsContext() { return cifsContext; }
 
+    int getParallelism() { return parallelism; }
+
+    void setLargeFileThreshold(final long largeFileThreshold) { uploader.setLargeFileThreshold(largeFileThreshold); }
+
+    /**
+     * Take a stream permit from the limits around each write, and give the publish permit back on disconnect.
+     */
+    void setHostLimits(final CifsHostLimits hostLimits, final CifsHostLimits.Permit publishPermit, final String who,
+                       final int priority) {
+        this.publishPermit = publishPermit;
+        uploader.setHostLimits(hostLimits, who, priority);
+    }
+
+    /**
+     * Record counters and timings for the named host configuration, to be handed to the sink as they are flushed.
+     */
+    void setMetrics(final String host, final CifsMetrics.Sink sink) {
+        metricsHost = host;
+        metricsSink = sink;
+    }
+
+    CifsMetrics.Sample getMetrics() { return metrics; }
+
+    void setReport(final CifsTransferReportAction.Sink reportSink, final long connectMillis) {
+        this.reportSink = reportSink;
+        this.connectMillis = connectMillis;
+    }
+
+    private void finishReport(final CifsTransfer transfer) {
+        if (report == null) return;
+        final CifsTransferReportAction.Collector finished = report;
+        report = null;
+        final String description = transfer == null ? "" : describe(transfer);
+        try {
+            reportSink.record(finished.finish(metricsHost, description, connectMillis));
+        } catch (final RuntimeException re) {
+            // the report is never worth failing a publish for
+            buildInfo.printIfVerbose(Messages.console_report_failed(re.getLocalizedMessage()));
+        }
+        connectMillis = 0;
+    }
+
+    private static String describe(final CifsTransfer transfer) {
+        final String source = transfer.hasConfiguredSourceFiles() ? transfer.getSourceFiles() : transfer.getRemoteSource();
+        return Util.fixNull(source) + " -> " + Util.fixNull(transfer.getRemoteDirectory());
+    }
+
+    private String reportPath(final String url) {
+        return url.startsWith(baseUrl) ? url.substring(baseUrl.length()) : helper.hideUserInfo(url);
+    }
+
+    private void flushMetrics() {
+        CifsMetrics.flush(metricsSink, metricsHost, metrics);
+    }
+
+    /**
+     * Record a file that was written, for the metrics and the report.
+     */
+    void transferred(final String url, final long bytes, final long nanos) {
+        metrics.transferred(bytes, nanos);
+        final CifsTransferReportAction.Collector collector = report;
+        if (collector != null) collector.file(reportPath(url), bytes, nanos);
+    }
+
+    CifsBandwidthLimiter getLimiter() { return uploader.getLimiter(); }
+
+    void setLimiter(final CifsBandwidthLimiter limiter) { uploader.setLimiter(limiter); }
+
+    /**
+     * Send everything to the given clients as well. Each file is read once and copied to every share at the same time,
+     * so the parallel streams of each share are not used.
+     */
+    void fanOutTo(final List<CifsClient> sinks) {
+        fanOut = new ArrayList<>(sinks);
+        parallelism = 1;
+        uploader.singleStream();
+        for (final CifsClient sink : fanOut) {
+            sink.parallelism = 1;
+            sink.uploader.singleStream();
+        }
+        fanOutExecutor = Executors.newFixedThreadPool(fanOut.size() + 1,
+                new NamingThreadFactory(new DaemonThreadFactory(), "CIFS fan-out from " + helper.hideUserInfo(baseUrl)));
+    }
+
     @Override
     public boolean changeToInitialDirectory() {
         context = baseUrl;
+        for (final CifsClient sink : fanOut) sink.changeToInitialDirectory();
         return true;
     }
 
     public boolean changeDirectory(final String directory) {
+        if (!changeOwnDirectory(directory)) return false;
+        // the shares fanned out to follow this one, creating what they are missing
+        for (final CifsClient sink : fanOut) {
+            if (!sink.changeOwnDirectory(directory)) {
+                sink.makeDirectory(directory);
+                // otherwise the sink would write into whatever directory it was in before
+                if (!sink.changeOwnDirectory(directory))
+                    throw new BapPublisherException(Messages.exception_fanOut_changeDirectory(
+                            helper.hideUserInfo(sink.createUrlForSubDir(directory))));
+            }
+        }
+        return true;
+    }
+
+    private boolean changeOwnDirectory(final String directory) {
+        return metrics.time(CifsMetrics.Operation.CHANGE_DIRECTORY, () -> enterDirectory(directory));
+    }
+
+    private boolean enterDirectory(final String directory) {
         final String newLocation = createUrlForSubDir(directory);
+        if (directories.contains(newLocation)) {
+            enter(newLocation);
+            return true;
+        }
         final SmbFile dir = createFile(newLocation);
-        if (helper.exists(dir, newLocation) && helper.canRead(dir, newLocation)) {
-            context = newLocation;
+        if (!helper.exists(dir, newLocation)) {
+            missingDirectories.add(newLocation);
+            return false;
+        }
+        if (helper.canRead(dir, newLocation)) {
+            directories.add(newLocation);
+            enter(newLocation);
             return true;
         } else {
             return false;
         }
     }
 
+    private void enter(final String directoryUrl) {
+        context = directoryUrl;
+        mirror.keep(directoryUrl);
+    }
+
     private String createUrlForSubDir(final String directory) {
         return directory.endsWith("/") ? context + directory : context + directory + '/';
     }
 
     public boolean makeDirectory(final String directory) {
+        return metrics.time(CifsMetrics.Operation.MAKE_DIRECTORY, () -> makeOwnDirectory(directory));
+    }
+
+    private boolean makeOwnDirectory(final String directory) {
         final String newDirectoryUrl = createUrlForSubDir(directory);
         final SmbFile dir = createFile(newDirectoryUrl);
-        if (helper.exists(dir, newDirectoryUrl)) throw new BapPublisherException(
-                Messages.exception_mkdir_directoryExists(helper.hideUserInfo(newDirectoryUrl)));
+        if (directories.contains(newDirectoryUrl) || !missingDirectories.remove(newDirectoryUrl) && helper.exists(dir, newDirectoryUrl))
+            throw new BapPublisherException(Messages.exception_mkdir_directoryExists(helper.hideUserInfo(newDirectoryUrl)));
         if (buildInfo.isVerbose()) buildInfo.println(Messages.console_mkdir(helper.hideUserInfo(newDirectoryUrl)));
-        helper.mkdirs(dir, newDirectoryUrl);
+        // when the parent is known to exist, a single mkdir saves mkdirs walking up the tree
+        if (directories.contains(context) && newDirectoryUrl.indexOf('/', context.length()) == newDirectoryUrl.length() - 1)
+            helper.mkdir(dir, newDirectoryUrl);
+        else
+            helper.mkdirs(dir, newDirectoryUrl);
+        directories.addWithParents(newDirectoryUrl, baseUrl);
+        listings.put(newDirectoryUrl, new HashMap<>());
+        mirror.keep(newDirectoryUrl);
         return true;
     }
 
     public void deleteTree() throws IOException {
+        deleteOwnTree();
+        for (final CifsClient sink : fanOut) sink.deleteOwnTree();
+    }
+
+    private void deleteOwnTree() throws IOException {
+        metrics.time(CifsMetrics.Operation.DELETE_TREE, () -> {
+            cleanOwnTree();
+            return null;
+        });
+    }
+
+    private void cleanOwnTree() throws IOException {
         if (buildInfo.isVerbose()) buildInfo.println(Messages.console_clean(helper.hideUserInfo(context)));
-        final SmbFile[] files = helper.listFiles(createFile(context), context);
-        if (files == null) throw new BapPublisherException(Messages.exception_listFilesReturnedNull(helper.hideUserInfo(context)));
-        for (final SmbFile file : files) {
-            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_delete(helper.hideUserInfo(file.getCanonicalPath())));
-            helper.delete(file);
+        final boolean staged = staging.covers(context);
+        if (staged) {
+            // the staging directory only ever holds what this build has sent
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_stage_clean(helper.hideUserInfo(staging.getStagingRoot())));
+        } else if (!cleanInBackground || !cleaner.moveAside(context)) {
+            cleaner.empty(context);
         }
+        // nothing written below here before is there any more, unless it went to the staging directory
+        if (!staged) resumeState.forgetBelow(context);
+        forgetListingsBelow(context);
+        directories.removeBelow(context);
+        directoryCreator.createPending();
     }
 
     public void beginTransfers(final CifsTransfer transfer) {
-        if (!transfer.hasConfiguredSourceFiles())
+        if (!transfer.hasConfiguredSourceFiles() && transfer.getRemoteSource() == null)
             throw new BapPublisherException(Messages.exception_noSourceFiles());
+        transferring = true;
+        beginOwnTransfers(transfer);
+        if (fanOut.isEmpty()) return;
+        if (buildInfo.isVerbose()) buildInfo.println(Messages.console_fanOut(fanOut.size() + 1));
+        for (final CifsClient sink : fanOut) sink.beginOwnTransfers(transfer);
+    }
+
+    private void beginOwnTransfers(final CifsTransfer transfer) {
+        resume = resumeState.of(baseUrl, transferSet());
+        begun.add(resume);
+        transferSets++;
+        if (reportSink != null) report = new CifsTransferReportAction.Collector(CifsTransferReportAction.DEFAULT_SLOWEST_FILES);
+        skippedFiles = 0;
+        skippedBytes = 0;
+        cleanInBackground = transfer.isCleanRemote() && transfer.isCleanRemoteInBackground();
+        staging.clear();
+        if (transfer.isStaged()) staging.begin(resolveTransferRoot(transfer));
+        if (transfer.isMirror() && !staging.isStaging()) mirror.begin(resolveTransferRoot(transfer));
+        else mirror.clear();
+        deduplicator.begin(transfer);
+        if (transfer.isUseManifest()) {
+            transferRoot = resolveTransferRoot(transfer);
+            manifest = transfer.isCleanRemote() || staging.isStaging() ? CifsManifest.empty() : readManifest(transferRoot);
+        }
+        if (parallelism > 1) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_upload_parallel(parallelism));
+            uploads = new CifsUploadQueue(parallelism, "CIFS upload to " + helper.hideUserInfo(baseUrl));
+            directoryCreator.prepare(transfer);
+        }
     }
 
-    public void transferFile(final CifsTransfer transfer, final FilePath filePath, final InputStream content) throws IOException {
+    /**
+     * With parallel uploads the file is only queued here, and an upload worker sends it later. The caller closes the
+     * content stream as soon as this returns, long before the worker gets to the file, so the worker reads the file
+     * again itself and the content stream is closed straight away rather than held open, unread, while the file waits.
+     */
+    public void transferFile(final CifsTransfer transfer, final FilePath filePath, final InputStream content)
+            throws IOException, InterruptedException {
+        if (fanOut.isEmpty()) {
+            transferOwnFile(transfer, filePath, content);
+            return;
+        }
+        final List<CifsClient> clients = allClients();
+        final CifsTee tee = new CifsTee(content, clients.size(), bufferSize, CifsTee.DEFAULT_QUEUED_CHUNKS);
+        final List<Future<Void>> sent = new ArrayList<>(clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            final CifsClient client = clients.get(i);
+            final InputStream branch = tee.getBranch(i);
+            sent.add(fanOutExecutor.submit(() -> {
+                try (InputStream in = branch) {
+                    client.transferOwnFile(transfer, filePath, in);
+                }
+                return null;
+            }));
+        }
+        Throwable first = null;
+        try {
+            tee.pump();
+        } catch (final IOException ioe) {
+            first = ioe;
+        } finally {
+            for (final Future<Void> future : sent) {
+                try {
+                    future.get();
+                } catch (final ExecutionException ee) {
+                    if (first == null) first = ee.getCause();
+                }
+            }
+        }
+        if (first != null) rethrow(first);
+    }
+
+    private static void rethrow(final Throwable throwable) throws IOException, InterruptedException {
+        if (throwable instanceof IOException ioe) throw ioe;
+        if (throwable instanceof InterruptedException ie) throw ie;
+        if (throwable instanceof RuntimeException re) throw re;
+        if (throwable instanceof Error e) throw e;
+        throw new IOException(throwable);
+    }
+
+    private void transferOwnFile(final CifsTransfer transfer, final FilePath filePath, final InputStream content)
+            throws IOException, InterruptedException {
         final String newFileUrl = context + filePath.getName();
-        if (buildInfo.isVerbose()) buildInfo.println(Messages.console_copy(helper.hideUserInfo(newFileUrl)));
+        mirror.keep(newFileUrl);
+        if (staging.isStaging()) staging.heartbeat();
+        // a staging directory starts empty, so nothing in it can be unchanged
+        final boolean incremental = transfer != null && transfer.isSkipUnchanged() && !staging.isStaging();
+        final String manifestPath = manifest != null && newFileUrl.startsWith(transferRoot)
+                ? newFileUrl.substring(transferRoot.length()) : null;
+        final boolean retried = resume.hasCompleted(target(newFileUrl));
+        final boolean dedup = deduplicator.isDeduplicating();
+        final long length = manifestPath == null && !retried && !dedup ? -1 : filePath.length();
+        if (retried && resume.isCompleted(target(newFileUrl), filePath.getRemote(), length)) {
+            // copied by an earlier attempt of this build
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_resume_completed(helper.hideUserInfo(newFileUrl)));
+            if (manifestPath != null) manifest.put(manifestPath, length, deduplicator.digestOf(filePath));
+            return;
+        }
+        // the manifest only needs the digest once the file has been sent, unless it is compared to an entry first
+        final byte[] digest = dedup ? deduplicator.digestOf(filePath) : null;
+        if (incremental && (manifestPath == null ? isUnchanged(filePath) : isUnchanged(manifestPath, filePath, length, digest))) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_skip(helper.hideUserInfo(newFileUrl)));
+            return;
+        }
+        // forget the old entry first, so that a failed upload is not recorded as unchanged
+        if (manifestPath != null) manifest.remove(manifestPath);
+        final CifsUploadQueue.Task uploaded = () -> {
+            if (incremental) preserveLastModified(filePath, newFileUrl);
+            if (manifestPath != null) manifest.put(manifestPath, length, digest == null ? deduplicator.digestOf(filePath) : digest);
+            if (dedup) deduplicator.remember(digest, length, newFileUrl);
+        };
+        CompletableFuture<String> sending = null;
+        if (dedup) {
+            sending = new CompletableFuture<>();
+            final CompletableFuture<String> earlier = deduplicator.sending(digest, length, sending);
+            if (earlier != null) {
+                // this publish already has the same content on its way to the share
+                if (uploads == null) {
+                    runUnchecked(() -> deduplicator.sendDuplicate(earlier, filePath, content, newFileUrl, length, uploaded));
+                } else {
+                    queue(newFileUrl, content, () -> deduplicator.sendDuplicate(earlier, filePath, null, newFileUrl, length, uploaded));
+                }
+                return;
+            }
+        }
+        final CompletableFuture<String> sent = sending;
+        boolean handedOver = false;
+        try {
+            if (dedup && deduplicator.copyIdentical(digest, length, newFileUrl)) {
+                resume.complete(target(newFileUrl), filePath.getRemote(), length);
+                runUnchecked(uploaded);
+                sent.complete(newFileUrl);
+                handedOver = true;
+                return;
+            }
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_copy(helper.hideUserInfo(newFileUrl)));
 
-        try (OutputStream out = createFile(newFileUrl).getOutputStream()) {
-            IOUtils.copy(content, out, bufferSize);
+            if (uploads == null) {
+                runUnchecked(() -> send(filePath, content, newFileUrl, uploaded, sent));
+            } else {
+                queue(newFileUrl, content, () -> send(filePath, null, newFileUrl, uploaded, sent));
+            }
+            handedOver = true;
+        } finally {
+            // duplicates waiting for this content must send their own rather than wait for an upload that never happens
+            if (sent != null && !handedOver)
+                sent.completeExceptionally(new IOException(Messages.exception_dedup_notSent(helper.hideUserInfo(newFileUrl))));
         }
     }
 
+    @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+    private void send(final FilePath filePath, final InputStream content, final String url, final CifsUploadQueue.Task uploaded,
+                      final CompletableFuture<String> sent) throws Exception {
+        try {
+            uploader.uploadWithRetry(filePath, content, url);
+            uploaded.run();
+        } catch (final Exception e) {
+            // anything waiting to copy this content sends its own instead
+            if (sent != null) sent.completeExceptionally(e);
+            throw e;
+        }
+        if (sent != null) sent.complete(url);
+    }
+
+    /**
+     * Hand a file to the upload workers, closing the content stream that is no use to them.
+     */
+    private void queue(final String url, final InputStream content, final CifsUploadQueue.Task task) {
+        try {
+            content.close();
+        } catch (final IOException ioe) {
+            // nothing was read from it, and the worker does not need it
+        }
+        uploads.submit(url, task);
+    }
+
+    @SuppressWarnings("PMD.AvoidCatchingGenericException")
+    private static void runUnchecked(final CifsUploadQueue.Task task) throws IOException, InterruptedException {
+        try {
+            task.run();
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * The manifest only says what was published, so the file also has to still be on the share, with the same size,
+     * before its digest is worked out and compared.
+     */
+    private boolean isUnchanged(final String manifestPath, final FilePath filePath, final long length, final byte[] digest)
+            throws IOException, InterruptedException {
+        final long[] remote = listCurrentDirectory().get(filePath.getName());
+        if (remote == null || remote[0] != length) return false;
+        if (!manifest.matches(manifestPath, length, digest == null ? deduplicator.digestOf(filePath) : digest)) return false;
+        skippedFiles++;
+        skippedBytes += length;
+        return true;
+    }
+
+    private boolean isUnchanged(final FilePath filePath) throws IOException, InterruptedException {
+        final long[] remote = listCurrentDirectory().get(filePath.getName());
+        if (remote == null) return false;
+        final long length = filePath.length();
+        if (remote[0] != length || remote[1] < filePath.lastModified()) return false;
+        skippedFiles++;
+        skippedBytes += length;
+        return true;
+    }
+
+    private Map<String, long[]> listCurrentDirectory() throws IOException {
+        Map<String, long[]> listing = listings.get(context);
+        if (listing == null) {
+            listing = new HashMap<>();
+            final SmbFile[] files = helper.listFiles(createFile(context), context);
+            if (files != null) {
+                for (final SmbFile file : files) {
+                    if (file.isDirectory()) {
+                        // tombstones and staging directories may be deleted in the background at any time
+                        final String name = file.getName();
+                        if (!name.startsWith(CifsTombstoneReaper.TOMBSTONE_PREFIX) && !name.startsWith(STAGING_PREFIX))
+                            directories.add(context + name);
+                    }
+                    else listing.put(file.getName(), new long[] {file.length(), file.lastModified()});
+                }
+            }
+            listings.put(context, listing);
+        }
+        return listing;
+    }
+
+    /**
+     * Give the remote copy the timestamp of the local file, so that the next incremental publish compares like with like.
+     */
+    private void preserveLastModified(final FilePath filePath, final String url) throws IOException, InterruptedException {
+        createFile(url).setLastModified(filePath.lastModified());
+    }
+
+    protected SmbRandomAccess openRandomAccess(final SmbFile file) throws CIFSException {
+        return file.openRandomAccess("rw", SmbConstants.FILE_SHARE_READ | SmbConstants.FILE_SHARE_WRITE);
+    }
+
+    @Override
+    public void endTransfers(final CifsTransfer transfer) {
+        BapPublisherException first = null;
+        for (final CifsClient client : allClients()) {
+            try {
+                client.endOwnTransfers(transfer);
+            } catch (final BapPublisherException bpe) {
+                // every share still finishes its transfer set
+                if (first == null) first = bpe;
+            } finally {
+                client.finishReport(transfer);
+                client.flushMetrics();
+            }
+        }
+        if (first != null) throw first;
+        transferring = false;
+    }
+
+    private List<CifsClient> allClients() {
+        final List<CifsClient> clients = new ArrayList<>(fanOut.size() + 1);
+        clients.add(this);
+        clients.addAll(fanOut);
+        return clients;
+    }
+
+    private void endOwnTransfers(final CifsTransfer transfer) {
+        final List<CifsUploadQueue.Failure> failures = awaitUploads();
+        if (transfer != null && transfer.getRemoteSource() != null && failures.isEmpty()) remoteCopy.copy(transfer);
+        // never delete anything on the strength of a transfer set that did not complete
+        if (mirror.isMirroring() && failures.isEmpty()) {
+            final String root = mirror.getRoot();
+            final Set<String> kept = mirror.deleteStale();
+            if (manifest != null && root.equals(transferRoot)) manifest.retainOnly(kept);
+        }
+        if (manifest != null) writeManifest();
+        if (staging.isStaging() && failures.isEmpty()) staging.swap();
+        deduplicator.end();
+        if (transfer != null && transfer.isSkipUnchanged()) buildInfo.println(Messages.console_skipped(skippedFiles, skippedBytes));
+        final long waited = uploader.takeStreamWait();
+        if (waited > 0) buildInfo.println(Messages.console_hostLimits_streamWait(waited));
+        if (failures.isEmpty()) return;
+        for (final CifsUploadQueue.Failure failure : failures) {
+            buildInfo.println(Messages.console_upload_failed(helper.hideUserInfo(failure.getUrl()),
+                                                             failure.getCause().getLocalizedMessage()));
+        }
+        final CifsUploadQueue.Failure first = failures.get(0);
+        throw new BapPublisherException(Messages.exception_upload_failed(failures.size(), helper.hideUserInfo(first.getUrl()),
+                                                                         first.getCause().getLocalizedMessage()), first.getCause());
+    }
+
+    private List<CifsUploadQueue.Failure> awaitUploads() {
+        if (uploads == null) return Collections.emptyList();
+        final CifsUploadQueue queue = uploads;
+        uploads = null;
+        try {
+            return queue.await();
+        } catch (final InterruptedException ie) {
+            queue.abort();
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_upload_interrupted(), ie);
+        }
+    }
+
+    private CifsManifest readManifest(final String rootUrl) {
+        final String url = rootUrl + CifsManifest.FILE_NAME;
+        final SmbFile file = createFile(url);
+        if (!helper.exists(file, url)) return CifsManifest.empty();
+        try (InputStream in = file.getInputStream()) {
+            final CifsManifest read = CifsManifest.read(in, file.length());
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_manifest_read(helper.hideUserInfo(url), read.size()));
+            return read;
+        } catch (final IOException ioe) {
+            buildInfo.println(Messages.console_manifest_ignored(helper.hideUserInfo(url), ioe.getLocalizedMessage()));
+            return CifsManifest.empty();
+        }
+    }
+
+    /**
+     * Forget the manifest entry of a file whose digest is not known, as it did not pass through this client.
+     */
+    void forgetManifestEntry(final String url) {
+        if (manifest != null && url.startsWith(transferRoot)) manifest.remove(url.substring(transferRoot.length()));
+    }
+
+    private void writeManifest() {
+        final String url = transferRoot + CifsManifest.FILE_NAME;
+        try (OutputStream out = createFile(url).getOutputStream()) {
+            manifest.write(out);
+        } catch (final IOException ioe) {
+            throw new BapPublisherException(Messages.exception_manifest_write(helper.hideUserInfo(url), ioe.getLocalizedMessage()), ioe);
+        }
+        if (buildInfo.isVerbose()) buildInfo.println(Messages.console_manifest_written(helper.hideUserInfo(url), manifest.size()));
+        manifest = null;
+    }
+
+    /**
+     * The directory that a transfer set publishes to, resolved the same way as publish-over resolves the Remote directory.
+     */
+    String resolveTransferRoot(final CifsTransfer transfer) {
+        return baseUrl + resolveRemoteDirectory(transfer, buildInfo);
+    }
+
+    /**
+     * @return the Remote directory of the transfer set relative to the share, either empty or ending in a slash
+     */
+    static String resolveRemoteDirectory(final CifsTransfer transfer, final BPBuildInfo buildInfo) {
+        String directory = transfer.getRemoteDirectory();
+        if (Util.fixEmptyAndTrim(directory) == null) return "";
+        if (transfer.isRemoteDirectorySDF()) {
+            directory = new SimpleDateFormat(directory).format(buildInfo.getBuildTime().getTime());
+        } else {
+            directory = Util.replaceMacro(directory, buildInfo.getEnvVars());
+        }
+        directory = StringUtils.strip(directory.trim().replace('\\', '/'), "/");
+        return directory.isEmpty() ? "" : directory + '/';
+    }
+
+    /**
+     * @return the url that a file is really written to, which is below the staging directory while staging
+     */
+    String target(final String url) {
+        return staging.target(url);
+    }
+
+    /**
+     * @return what this client has written in the transfer set that it is publishing
+     */
+    CifsResumeState.Progress progress() {
+        return resume;
+    }
+
+    /**
+     * Forget the listings of the directory and everything below it, which no longer match the share.
+     */
+    void forgetListingsBelow(final String directoryUrl) {
+        listings.keySet().removeIf(url -> url.startsWith(directoryUrl));
+    }
+
+    /**
+     * Record that a directory was just created, so that it holds nothing.
+     */
+    void createdEmpty(final String directoryUrl) {
+        listings.put(directoryUrl, new HashMap<>());
+    }
+
+    /**
+     * Have a directory deleted in the background, forgetting that it was there.
+     */
+    void reap(final String directoryUrl, final SmbFile directory) {
+        directories.removeTree(directoryUrl);
+        CifsTombstoneReaper.get().reap(directory, lease.share());
+    }
+
     public void disconnect() {
+        release();
     }
 
     public void disconnectQuietly() {
+        release();
+    }
+
+    /**
+     * Nothing here can fail, so disconnecting quietly or not is the same.
+     */
+    private void release() {
+        // a retry of the publisher may carry on from what this attempt wrote
+        if (transferring) {
+            for (final CifsClient client : allClients()) {
+                for (final CifsResumeState.Progress progress : client.begun) progress.attemptFailed();
+            }
+        }
+        abortUploads();
+        uploader.shutdown();
+        lease.release();
+        if (publishPermit != null) publishPermit.release();
+        flushMetrics();
+        disconnectFanOut();
+    }
+
+    private void disconnectFanOut() {
+        if (fanOutExecutor != null) fanOutExecutor.shutdownNow();
+        for (final CifsClient sink : fanOut) sink.disconnectQuietly();
+    }
+
+    private void abortUploads() {
+        if (uploads != null) {
+            uploads.abort();
+            uploads = null;
+        }
     }
 
     @SuppressWarnings("PMD.PreserveStackTrace") // security
-    private SmbFile createFile(final String url) {
+    SmbFile createFile(final String url) {
+        final String staged = target(url);
         try {
-            return createSmbFile(url);
+            return createSmbFile(staged);
         } catch (MalformedURLException mue) {
             throw new BapPublisherException(Messages.exception_malformedUrlException(helper.hideUserInfo(url)));
         }
@@ -0,0 +1,139 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the publishers of one build step on a bounded pool, one task per host configuration.
+ * <p>
+ * Publishers to the same host configuration still run one after another, in the order they were configured. The
+ * console output of each host configuration is buffered and copied to the build console in configured order as soon as
+ * it, and every host configuration before it, has finished.
+ */
+final class CifsConcurrentPublish {
+
+    /** Publishes some of the publishers of the build step. */
+    interface Step {
+        /**
+         * @param publishers the publishers to one host configuration
+         * @param listener where to write the console output
+         * @return false if the publishers failed
+         */
+        boolean perform(List<CifsPublisher> publishers, TaskListener listener) throws IOException, InterruptedException;
+    }
+
+    private CifsConcurrentPublish() { }
+
+    static Map<String, List<CifsPublisher>> byHost(final List<CifsPublisher> publishers) {
+        final Map<String, List<CifsPublisher>> byHost = new LinkedHashMap<>();
+        for (final CifsPublisher publisher : publishers)
+            byHost.computeIfAbsent(publisher.getConfigName(), name -> new ArrayList<>()).add(publisher);
+        return byHost;
+    }
+
+    /**
+     * Publish to every host configuration, at most {@code maxConcurrent} at a time.
+     * <p>
+     * Unless {@code continueOnError} is set, host configurations that have not started when one fails are not published
+     * to, as if the publishers had run one at a time. Those already running are allowed to finish.
+     * @return false if any step failed
+     * @throws IOException the first exception thrown by a step, once every step has finished
+     */
+    static boolean run(final Map<String, List<CifsPublisher>> byHost, final int maxConcurrent, final boolean continueOnError,
+                    final TaskListener listener, final Step step) throws IOException, InterruptedException {
+        final PrintStream console = listener.getLogger();
+        final int threads = Math.max(1, Math.min(maxConcurrent, byHost.size()));
+        console.println(Messages.console_concurrent_start(byHost.size(), threads));
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "CIFS publisher"));
+        final AtomicBoolean stop = new AtomicBoolean();
+        final List<Future<Boolean>> results = new ArrayList<>();
+        final List<ByteArrayOutputStream> buffers = new ArrayList<>();
+        try {
+            for (final Map.Entry<String, List<CifsPublisher>> host : byHost.entrySet()) {
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                buffers.add(buffer);
+                results.add(executor.submit(() -> {
+                    final TaskListener buffered = new StreamTaskListener(buffer, StandardCharsets.UTF_8);
+                    if (stop.get()) {
+                        buffered.getLogger().println(Messages.console_concurrent_skipped(host.getKey()));
+                        return true;
+                    }
+                    boolean ok = false;
+                    try {
+                        ok = step.perform(host.getValue(), buffered);
+                    } finally {
+                        if (!ok && !continueOnError) stop.set(true);
+                        buffered.getLogger().flush();
+                    }
+                    return ok;
+                }));
+            }
+            executor.shutdown();
+            Throwable first = null;
+            boolean ok = true;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    ok &= results.get(i).get();
+                } catch (final ExecutionException ee) {
+                    if (first == null) first = ee.getCause();
+                }
+                buffers.get(i).writeTo(console);
+                console.flush();
+            }
+            if (first != null) rethrow(first);
+            return ok;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void rethrow(final Throwable throwable) throws IOException, InterruptedException {
+        if (throwable instanceof IOException ioe) throw ioe;
+        if (throwable instanceof InterruptedException ie) throw ie;
+        if (throwable instanceof RuntimeException re) throw re;
+        if (throwable instanceof Error e) throw e;
+        throw new IOException(throwable);
+    }
+
+}
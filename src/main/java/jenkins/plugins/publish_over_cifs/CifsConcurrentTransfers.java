@@ -0,0 +1,185 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs the transfer sets of one publisher on a bounded pool.
+ * <p>
+ * A transfer set that cleans, mirrors or stages its remote directory deletes from it, so it waits for every earlier
+ * transfer set whose remote directory is the same as, inside or above its own, and every later such transfer set
+ * waits for it. Everything else runs at once. The console output of each transfer set is buffered and copied to the
+ * build console in configured order.
+ */
+final class CifsConcurrentTransfers {
+
+    /** the context entries that each transfer set shares with the publisher */
+    private static final List<String> SHARED_CONTEXT_KEYS = Arrays.asList(
+            CifsPublisher.CTX_KEY_NODE_PROPERTIES_DEFAULT, CifsPublisher.CTX_KEY_NODE_PROPERTIES_CURRENT,
+            CifsPublisher.CTX_KEY_WINS_SERVER, CifsPublisher.CTX_KEY_FAN_OUT_HOSTS, CifsPublisher.CTX_KEY_FAN_OUT,
+            CifsPublisher.CTX_KEY_SERVER_LIMITS, CifsPublisher.CTX_KEY_PUBLISH_PERMITS,
+            CifsPublisher.CTX_KEY_PRIORITY, CifsMetrics.CTX_KEY_METRICS, CifsTransferReportAction.CTX_KEY_REPORT,
+            CifsFileRetryPolicy.CTX_KEY_FILE_RETRY, CifsResumeState.CTX_KEY_RESUME_STATE,
+            CifsDirectoryCache.CTX_KEY_DIRECTORY_CACHE);
+
+    /** Publishes one of the transfer sets. */
+    interface Step {
+        @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+        void perform(int index, BPBuildInfo buildInfo) throws Exception;
+    }
+
+    private CifsConcurrentTransfers() { }
+
+    /**
+     * @return for each transfer set, the earlier transfer sets that it has to wait for
+     */
+    static List<List<Integer>> dependencies(final List<CifsTransfer> transfers, final BPBuildInfo buildInfo) {
+        final List<String> roots = new ArrayList<>(transfers.size());
+        for (final CifsTransfer transfer : transfers)
+            roots.add(CifsClient.resolveRemoteDirectory(transfer, buildInfo).toLowerCase(Locale.ROOT));
+        final List<List<Integer>> dependencies = new ArrayList<>(transfers.size());
+        for (int later = 0; later < transfers.size(); later++) {
+            final List<Integer> waitFor = new ArrayList<>();
+            for (int earlier = 0; earlier < later; earlier++) {
+                final boolean overlaps = roots.get(later).startsWith(roots.get(earlier)) || roots.get(earlier).startsWith(roots.get(later));
+                if (overlaps && (deletes(transfers.get(earlier)) || deletes(transfers.get(later)))) waitFor.add(earlier);
+            }
+            dependencies.add(waitFor);
+        }
+        return dependencies;
+    }
+
+    private static boolean deletes(final CifsTransfer transfer) {
+        return transfer.isCleanRemote() || transfer.isMirror() || transfer.isStaged();
+    }
+
+    /**
+     * Publish every transfer set, at most {@code maxConcurrent} at a time. Once one fails, transfer sets that have not
+     * started are not published, as if they had run one at a time. Those already running are allowed to finish.
+     * @throws Exception the first exception thrown by a transfer set, once every transfer set has finished
+     */
+    @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+    static void run(final List<CifsTransfer> transfers, final int maxConcurrent, final BPBuildInfo buildInfo, final Step step)
+            throws Exception {
+        final List<List<Integer>> dependencies = dependencies(transfers, buildInfo);
+        final int threads = Math.min(maxConcurrent, transfers.size());
+        buildInfo.println(Messages.console_transfers_concurrent(transfers.size(), threads));
+        final PrintStream console = buildInfo.getListener().getLogger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "CIFS transfer sets"));
+        final AtomicBoolean failed = new AtomicBoolean();
+        final List<Future<Void>> results = new ArrayList<>();
+        final List<ByteArrayOutputStream> buffers = new ArrayList<>();
+        try {
+            for (int i = 0; i < transfers.size(); i++) {
+                final int index = i;
+                final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                buffers.add(buffer);
+                final List<Future<Void>> waitFor = new ArrayList<>();
+                for (final int earlier : dependencies.get(i)) waitFor.add(results.get(earlier));
+                // tasks start in the order submitted, so whatever this one waits for has already started
+                results.add(executor.submit(() -> {
+                    final TaskListener listener = new StreamTaskListener(buffer, StandardCharsets.UTF_8);
+                    final BPBuildInfo buffered = copy(buildInfo, listener);
+                    for (final Future<Void> earlier : waitFor) {
+                        try {
+                            earlier.get();
+                        } catch (final ExecutionException ee) {
+                            // reported by the transfer set that failed
+                        }
+                    }
+                    if (failed.get()) {
+                        buffered.println(Messages.console_transfers_skipped(index + 1));
+                        return null;
+                    }
+                    boolean ok = false;
+                    try {
+                        step.perform(index, buffered);
+                        ok = true;
+                    } finally {
+                        if (!ok) failed.set(true);
+                        listener.getLogger().flush();
+                    }
+                    return null;
+                }));
+            }
+            executor.shutdown();
+            Throwable first = null;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                } catch (final ExecutionException ee) {
+                    if (first == null) first = ee.getCause();
+                }
+                buffers.get(i).writeTo(console);
+                console.flush();
+            }
+            if (first instanceof Exception e) throw e;
+            if (first instanceof Error e) throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A build info like the publisher's, but writing to a listener of its own. The resume state, directory cache and
+     * other shared entries are the same objects, and are safe to use from several transfer sets at once.
+     */
+    static BPBuildInfo copy(final BPBuildInfo buildInfo, final TaskListener listener) {
+        final BPBuildInfo copy = new BPBuildInfo(listener, buildInfo.getConsoleMsgPrefix(), buildInfo.getConfigDir(),
+                                                 buildInfo.getCurrentBuildEnv(), buildInfo.getTargetBuildEnv());
+        copy.setBaseDirectory(buildInfo.getBaseDirectory());
+        copy.setEnvVars(buildInfo.getEnvVars());
+        copy.setBuildTime(buildInfo.getBuildTime());
+        copy.setVerbose(buildInfo.isVerbose());
+        // create these now, so that every copy shares them
+        CifsResumeState.get(buildInfo);
+        CifsDirectoryCache.get(buildInfo);
+        for (final String key : SHARED_CONTEXT_KEYS) {
+            final Object value = buildInfo.get(key);
+            if (value != null) copy.put(key, value);
+        }
+        return copy;
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Times the check of the share that every connect does, so that a slow connect can be told apart from a slow share.
+ * <p>
+ * jcifs resolves the name, connects, negotiates, logs on and connects to the share on demand, inside the first operation
+ * on a file. On a new context that is the exists check, which is timed as the whole connect. On a context reused from the
+ * pool it is one round trip to a server that is already connected, and is timed apart, so the two do not blur together.
+ */
+final class CifsConnectPhases {
+
+    enum Phase {
+        CONNECT(CifsMetrics.Operation.CONNECT_NEW),
+        EXISTS(CifsMetrics.Operation.CONNECT_EXISTS),
+        CAN_READ(CifsMetrics.Operation.CONNECT_CAN_READ);
+
+        private final CifsMetrics.Operation operation;
+
+        Phase(final CifsMetrics.Operation operation) {
+            this.operation = operation;
+        }
+    }
+
+    private final Map<Phase, Long> nanos = new EnumMap<>(Phase.class);
+    private final boolean reused;
+    private Phase failed;
+    private long failedNanos;
+
+    /**
+     * @param reused true if the context came from the pool, and so may already be connected to the server
+     */
+    CifsConnectPhases(final boolean reused) {
+        this.reused = reused;
+    }
+
+    /**
+     * @return the phase that the first operation on the share is timed as
+     */
+    Phase first() {
+        return reused ? Phase.EXISTS : Phase.CONNECT;
+    }
+
+    /**
+     * Time a step of the check of the share, counting it as failed if it throws.
+     */
+    <T, E extends Exception> T time(final Phase phase, final CifsMetrics.Timed<T, E> call) throws E {
+        final long started = System.nanoTime();
+        boolean ok = false;
+        try {
+            final T result = call.call();
+            ok = true;
+            return result;
+        } finally {
+            if (ok) nanos.put(phase, System.nanoTime() - started);
+            else fail(phase, System.nanoTime() - started);
+        }
+    }
+
+    private void fail(final Phase phase, final long took) {
+        // only the first failure is of interest, the rest follow from it
+        if (failed != null) return;
+        failed = phase;
+        failedNanos = took;
+    }
+
+    boolean isReused() { return reused; }
+
+    long getMillis(final Phase phase) {
+        final Long took = nanos.get(phase);
+        return took == null ? -1 : took / 1_000_000;
+    }
+
+    Phase getFailed() { return failed; }
+
+    void recordTo(final CifsMetrics.Sample metrics) {
+        for (final Map.Entry<Phase, Long> entry : nanos.entrySet()) metrics.time(entry.getKey().operation, entry.getValue(), false);
+        if (failed != null) metrics.time(failed.operation, failedNanos, true);
+    }
+
+}
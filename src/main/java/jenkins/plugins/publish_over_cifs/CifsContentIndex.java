@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jenkins.util.SystemProperties;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Where content was recently published on a share, keyed on its SHA-256 and size, so that a file whose content is
+ * already on the share can be copied there by the server instead of being sent again.
+ * <p>
+ * Only the most recently used entries are kept. Each entry also records the last modified time that the remote file had
+ * when it was published, and is only trusted while the remote file still has that time and size, so an entry that has
+ * since been overwritten or deleted is never copied.
+ */
+final class CifsContentIndex {
+
+    static final String FILE_NAME = ".cifs-content-index";
+    static final int DEFAULT_MAX_ENTRIES = SystemProperties.getInteger(CifsContentIndex.class.getName() + ".maxEntries", 50_000);
+    private static final int MAGIC = 0x43494458;
+    private static final int VERSION = 1;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    private final int maxEntries;
+    private final Map<String, Entry> entries;
+    private boolean changed;
+
+    private CifsContentIndex(final int maxEntries) {
+        this.maxEntries = maxEntries;
+        // least recently used first
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+                return size() > CifsContentIndex.this.maxEntries;
+            }
+        };
+    }
+
+    static CifsContentIndex empty(final int maxEntries) {
+        return new CifsContentIndex(maxEntries);
+    }
+
+    static CifsContentIndex read(final InputStream in, final int maxEntries) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+        if (data.readInt() != MAGIC || data.readInt() != VERSION) throw new IOException(Messages.exception_contentIndex_format());
+        final int count = data.readInt();
+        if (count < 0) throw new IOException(Messages.exception_contentIndex_format());
+        final CifsContentIndex index = new CifsContentIndex(maxEntries);
+        final byte[] digest = new byte[CifsManifest.DIGEST_LENGTH];
+        for (int i = 0; i < count; i++) {
+            data.readFully(digest);
+            final long size = data.readLong();
+            final long lastModified = data.readLong();
+            index.entries.put(key(digest, size), new Entry(data.readUTF(), size, lastModified));
+        }
+        return index;
+    }
+
+    synchronized void write(final OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(entries.size());
+        for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+            data.write(HexFormat.of().parseHex(entry.getKey().substring(0, CifsManifest.DIGEST_LENGTH * 2)));
+            data.writeLong(entry.getValue().size);
+            data.writeLong(entry.getValue().lastModified);
+            data.writeUTF(entry.getValue().path);
+        }
+        data.flush();
+        changed = false;
+    }
+
+    /**
+     * @return where content with this digest and size was last published, or null
+     */
+    synchronized Entry find(final byte[] digest, final long size) {
+        return entries.get(key(digest, size));
+    }
+
+    /**
+     * Record that content was published to a path, relative to the share, and had the given last modified time there.
+     */
+    synchronized void put(final byte[] digest, final long size, final String path, final long lastModified) {
+        entries.put(key(digest, size), new Entry(path, size, lastModified));
+        changed = true;
+    }
+
+    synchronized void remove(final byte[] digest, final long size) {
+        if (entries.remove(key(digest, size)) != null) changed = true;
+    }
+
+    synchronized boolean isChanged() {
+        return changed;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    static String key(final byte[] digest, final long size) {
+        return HexFormat.of().formatHex(digest) + '/' + size;
+    }
+
+    static final class Entry {
+        private final String path;
+        private final long size;
+        private final long lastModified;
+
+        Entry(final String path, final long size, final long lastModified) {
+            this.path = path;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        String getPath() { return path; }
+
+        long getSize() { return size; }
+
+        long getLastModified() { return lastModified; }
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.Extension;
+import hudson.model.PeriodicWork;
+import jcifs.CIFSContext;
+import jcifs.CIFSException;
+import jenkins.util.SystemProperties;
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * JVM wide pool of jcifs contexts, keyed on the effective connection settings of a host configuration.
+ * <p>
+ * jcifs keeps its transports, sessions and tree connections inside the context that created them, so handing the
+ * same context to every client that talks to the same host with the same settings lets later publishes reuse the
+ * negotiated session instead of paying for a fresh connect, negotiate, session setup and tree connect.
+ */
+public final class CifsContextPool {
+
+    private static final Logger LOGGER = Logger.getLogger(CifsContextPool.class.getName());
+
+    public static final int DEFAULT_MAX_SIZE = SystemProperties.getInteger(CifsContextPool.class.getName() + ".maxSize", 16);
+    public static final long DEFAULT_IDLE_TIMEOUT = SystemProperties.getLong(CifsContextPool.class.getName() + ".idleTimeout",
+                                                                             TimeUnit.MINUTES.toMillis(5));
+
+    private static final CifsContextPool INSTANCE = new CifsContextPool(DEFAULT_MAX_SIZE, DEFAULT_IDLE_TIMEOUT);
+
+    public static CifsContextPool get() { return INSTANCE; }
+
+    private final int maxSize;
+    private final long idleTimeout;
+    /** access ordered, so iteration starts with the least recently used entry */
+    private final Map<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long overflows;
+
+    CifsContextPool(final int maxSize, final long idleTimeout) {
+        this.maxSize = maxSize;
+        this.idleTimeout = idleTimeout;
+    }
+
+    public Lease borrow(final Key key, final ContextFactory factory) throws CIFSException {
+        synchronized (this) {
+            evictIdle(System.currentTimeMillis());
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                hits++;
+                entry.references++;
+                return new Lease(this, entry, true);
+            }
+            misses++;
+        }
+        // create outside of the lock - building a context can be slow, and we do not want to block other hosts
+        final CIFSContext context = factory.create();
+        synchronized (this) {
+            final Entry existing = entries.get(key);
+            if (existing != null) {
+                // lost the race with another build, use theirs and throw ours away
+                closeQuietly(context);
+                existing.references++;
+                return new Lease(this, existing, true);
+            }
+            final Entry entry = new Entry(key, context);
+            entry.references++;
+            if (entries.size() >= maxSize && !evictLeastRecentlyUsed()) {
+                overflows++;
+                return new Lease(this, entry, false);
+            }
+            entries.put(key, entry);
+            return new Lease(this, entry, false);
+        }
+    }
+
+    /**
+     * Wrap a context that must never be pooled or closed by the pool, eg. the jcifs singleton.
+     */
+    public static Lease unpooled(final CIFSContext context) {
+        return new Lease(null, new Entry(null, context), false);
+    }
+
+    private synchronized void release(final Entry entry) {
+        entry.references--;
+        entry.lastUsed = System.currentTimeMillis();
+        if (entry.references == 0 && entries.get(entry.key) != entry) closeQuietly(entry.context);
+    }
+
+    public synchronized int evictIdle(final long now) {
+        int evicted = 0;
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.references == 0 && now - entry.lastUsed >= idleTimeout) {
+                iterator.remove();
+                closeQuietly(entry.context);
+                evicted++;
+            }
+        }
+        evictions += evicted;
+        return evicted;
+    }
+
+    private boolean evictLeastRecentlyUsed() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            if (entry.references == 0) {
+                iterator.remove();
+                closeQuietly(entry.context);
+                evictions++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized void clear() {
+        final List<Entry> idle = new ArrayList<>();
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            final Entry entry = iterator.next();
+            iterator.remove();
+            if (entry.references == 0) idle.add(entry);
+        }
+        for (final Entry entry : idle) closeQuietly(entry.context);
+    }
+
+    public synchronized Stats getStats() {
+        int inUse = 0;
+        for (final Entry entry : entries.values()) {
+            if (entry.references > 0) inUse++;
+        }
+        return new Stats(entries.size(), inUse, maxSize, hits, misses, evictions, overflows);
+    }
+
+    private static void closeQuietly(final CIFSContext context) {
+        try {
+            context.close();
+        } catch (final CIFSException ce) {
+            LOGGER.log(Level.FINE, "Failed to close pooled CIFS context", ce);
+        }
+    }
+
+    public interface ContextFactory {
+        CIFSContext create() throws CIFSException;
+    }
+
+    private static final class Entry {
+        private final Key key;
+        private final CIFSContext context;
+        private int references;
+        private long lastUsed = System.currentTimeMillis();
+
+        Entry(final Key key, final CIFSContext context) {
+            this.key = key;
+            this.context = context;
+        }
+    }
+
+    /**
+     * A borrowed context. Release it once the client that uses it disconnects.
+     */
+    public static final class Lease {
+        private final CifsContextPool pool;
+        private final Entry entry;
+        private final boolean reused;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(final CifsContextPool pool, final Entry entry, final boolean reused) {
+            this.pool = pool;
+            this.entry = entry;
+            this.reused = reused;
+        }
+
+        public CIFSContext getContext() { return entry.context; }
+
+        public boolean isReused() { return reused; }
+
+        public void release() {
+            if (pool != null && released.compareAndSet(false, true)) pool.release(entry);
+        }
+
+        /**
+         * Another lease on the same context, for work that may outlive this one. Release it separately.
+         */
+        public Lease share() {
+            if (pool == null) return new Lease(null, entry, reused);
+            synchronized (pool) {
+                entry.references++;
+            }
+            return new Lease(pool, entry, true);
+        }
+    }
+
+    /**
+     * Everything that affects how a context connects and authenticates. The password is only held as a digest.
+     */
+    public static final class Key {
+        private final String hostname;
+        private final int port;
+        private final CifsHostConfiguration.SmbVersions smbVersion;
+        private final int timeout;
+        private final String winsServer;
+        private final String credentialsHash;
+
+        public Key(final String hostname, final int port, final CifsHostConfiguration.SmbVersions smbVersion, final int timeout,
+                   final String winsServer, final String domain, final String username, final String password) {
+            this.hostname = hostname;
+            this.port = port;
+            this.smbVersion = smbVersion;
+            this.timeout = timeout;
+            this.winsServer = winsServer;
+            this.credentialsHash = digest(domain + '\\' + username + ':' + password);
+        }
+
+        private static String digest(final String credentials) {
+            try {
+                final byte[] hash = MessageDigest.getInstance("SHA-256").digest(credentials.getBytes(StandardCharsets.UTF_8));
+                final StringBuilder hex = new StringBuilder(hash.length * 2);
+                for (final byte b : hash) hex.append(String.format("%02x", b));
+                return hex.toString();
+            } catch (final NoSuchAlgorithmException nsae) {
+                throw new IllegalStateException(nsae);
+            }
+        }
+
+        public String getHostname() { return hostname; }
+
+        public boolean equals(final Object that) {
+            if (this == that) return true;
+            if (that == null || getClass() != that.getClass()) return false;
+            final Key other = (Key) that;
+            return new EqualsBuilder()
+                .append(hostname, other.hostname)
+                .append(port, other.port)
+                .append(smbVersion, other.smbVersion)
+                .append(timeout, other.timeout)
+                .append(winsServer, other.winsServer)
+                .append(credentialsHash, other.credentialsHash)
+                .isEquals();
+        }
+
+        public int hashCode() {
+            return new HashCodeBuilder()
+                .append(hostname)
+                .append(port)
+                .append(smbVersion)
+                .append(timeout)
+                .append(winsServer)
+                .append(credentialsHash)
+                .toHashCode();
+        }
+    }
+
+    public static final class Stats {
+        private final int size;
+        private final int inUse;
+        private final int maxSize;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+        private final long overflows;
+
+        Stats(final int size, final int inUse, final int maxSize, final long hits, final long misses, final long evictions,
+              final long overflows) {
+            this.size = size;
+            this.inUse = inUse;
+            this.maxSize = maxSize;
+            this.hits = hits;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.overflows = overflows;
+        }
+
+        public int getSize() { return size; }
+        public int getInUse() { return inUse; }
+        public int getMaxSize() { return maxSize; }
+        public long getHits() { return hits; }
+        public long getMisses() { return misses; }
+        public long getEvictions() { return evictions; }
+        public long getOverflows() { return overflows; }
+
+        public String toString() {
+            return Messages.console_pool_stats(size, maxSize, inUse, hits, misses, evictions, overflows);
+        }
+    }
+
+    @Extension
+    public static class IdleEvictor extends PeriodicWork {
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void doRun() {
+            get().evictIdle(System.currentTimeMillis());
+        }
+
+    }
+
+}
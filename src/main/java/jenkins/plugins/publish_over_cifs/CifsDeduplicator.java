@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.FilePath;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Has the server copy content that is already on the share instead of sending it again. Content that an earlier
+ * publish sent is found through the {@link CifsContentIndex} of the share, and a file with the same content as one that
+ * this publish is sending is copied once that one has got there.
+ */
+final class CifsDeduplicator {
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final CifsUploader uploader;
+    /** where content was recently published on this share, read when a transfer set first copies identical files */
+    private CifsContentIndex contentIndex;
+    private boolean deduplicating;
+    private final AtomicInteger deduplicatedFiles = new AtomicInteger();
+    private final AtomicLong deduplicatedBytes = new AtomicLong();
+    /** digests of the source files of the transfer set, keyed on their remote path, calculated in one call */
+    private Map<String, byte[]> scannedDigests = Collections.emptyMap();
+    /** content that the client has sent, or is sending, to the share -> the url it was sent to */
+    private final Map<String, CompletableFuture<String>> sentContent = new ConcurrentHashMap<>();
+
+    CifsDeduplicator(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+                     final CifsUploader uploader) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.uploader = uploader;
+    }
+
+    boolean isDeduplicating() { return deduplicating; }
+
+    void begin(final CifsTransfer transfer) {
+        deduplicating = transfer.isDeduplicate();
+        deduplicatedFiles.set(0);
+        deduplicatedBytes.set(0);
+        scannedDigests = Collections.emptyMap();
+        sentContent.clear();
+        if (deduplicating) {
+            if (contentIndex == null) contentIndex = readContentIndex();
+            scanDigests(transfer);
+        }
+    }
+
+    void end() {
+        if (!deduplicating) return;
+        buildInfo.println(Messages.console_dedup_saved(deduplicatedFiles.get(), deduplicatedBytes.get()));
+        writeContentIndex();
+    }
+
+    byte[] digestOf(final FilePath filePath) throws IOException, InterruptedException {
+        final byte[] scanned = scannedDigests.get(filePath.getRemote());
+        return scanned != null ? scanned : filePath.act(new CifsManifest.Sha256());
+    }
+
+    /**
+     * Work out the digest of every source file in one call to the node that holds them, rather than a call per file.
+     */
+    private void scanDigests(final CifsTransfer transfer) {
+        try {
+            final FilePath[] files = transfer.getSourceFiles(buildInfo);
+            if (files.length == 0) return;
+            final List<String> paths = new ArrayList<>(files.length);
+            for (final FilePath file : files) paths.add(file.getRemote());
+            scannedDigests = files[0].act(new CifsManifest.Sha256All(paths));
+        } catch (final IOException | RuntimeException e) {
+            buildInfo.println(Messages.console_dedup_scanFailed(e.getLocalizedMessage()));
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record that the content is on its way to the share, unless this publish is already sending the same content.
+     * @return what is already sending the same content, or null if the given send was recorded
+     */
+    CompletableFuture<String> sending(final byte[] digest, final long length, final CompletableFuture<String> sending) {
+        return sentContent.putIfAbsent(CifsContentIndex.key(digest, length), sending);
+    }
+
+    /**
+     * Have the server copy content that an earlier publish already put on the share, instead of sending it again.
+     * @return false if the content has to be sent
+     */
+    boolean copyIdentical(final byte[] digest, final long length, final String url) {
+        final CifsContentIndex.Entry entry = contentIndex.find(digest, length);
+        if (entry == null) return false;
+        final String sourceUrl = baseUrl + entry.getPath();
+        if (sourceUrl.equals(url)) return false;
+        try {
+            // the source is read where it really is, even when it is below a directory being staged
+            final SmbFile source = client.createSmbFile(sourceUrl);
+            if (!source.exists() || source.length() != length || source.lastModified() != entry.getLastModified()) {
+                // overwritten or deleted since
+                contentIndex.remove(digest, length);
+                return false;
+            }
+            if (buildInfo.isVerbose())
+                buildInfo.println(Messages.console_dedup_copy(helper.hideUserInfo(sourceUrl), helper.hideUserInfo(url)));
+            source.copyTo(client.createFile(url));
+        } catch (final IOException ioe) {
+            buildInfo.println(Messages.console_dedup_failed(helper.hideUserInfo(url), ioe.getLocalizedMessage()));
+            return false;
+        }
+        deduplicatedFiles.incrementAndGet();
+        deduplicatedBytes.addAndGet(length);
+        return true;
+    }
+
+    /**
+     * Copy content that this publish has sent to another url, once it has got there. If sending it failed, or the copy
+     * fails, send the file after all.
+     * @param content the content of the file, or null to read it from the file if it has to be sent
+     */
+    @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+    void sendDuplicate(final CompletableFuture<String> earlier, final FilePath filePath, final InputStream content,
+                       final String url, final long length, final CifsUploadQueue.Task uploaded) throws Exception {
+        String sourceUrl;
+        try {
+            sourceUrl = earlier.get();
+        } catch (final ExecutionException ee) {
+            sourceUrl = null;
+        }
+        boolean copied = false;
+        if (url.equals(sourceUrl)) {
+            // the same file again, and it is already there
+            copied = true;
+        } else if (sourceUrl != null) {
+            try {
+                if (buildInfo.isVerbose())
+                    buildInfo.println(Messages.console_dedup_copy(helper.hideUserInfo(sourceUrl), helper.hideUserInfo(url)));
+                // both are read through any staging directory, as that is where this publish sent the source
+                client.createFile(sourceUrl).copyTo(client.createFile(url));
+                client.progress().complete(client.target(url), filePath.getRemote(), length);
+                deduplicatedFiles.incrementAndGet();
+                deduplicatedBytes.addAndGet(length);
+                copied = true;
+            } catch (final IOException ioe) {
+                buildInfo.println(Messages.console_dedup_failed(helper.hideUserInfo(url), ioe.getLocalizedMessage()));
+            }
+        }
+        if (!copied) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_copy(helper.hideUserInfo(url)));
+            uploader.uploadWithRetry(filePath, content, url);
+        }
+        uploaded.run();
+    }
+
+    void remember(final byte[] digest, final long length, final String url) throws IOException {
+        contentIndex.put(digest, length, url.substring(baseUrl.length()), client.createFile(url).lastModified());
+    }
+
+    private CifsContentIndex readContentIndex() {
+        final String url = baseUrl + CifsContentIndex.FILE_NAME;
+        final SmbFile file = client.createFile(url);
+        if (!helper.exists(file, url)) return CifsContentIndex.empty(CifsContentIndex.DEFAULT_MAX_ENTRIES);
+        try (InputStream in = file.getInputStream()) {
+            final CifsContentIndex read = CifsContentIndex.read(in, CifsContentIndex.DEFAULT_MAX_ENTRIES);
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_contentIndex_read(helper.hideUserInfo(url), read.size()));
+            return read;
+        } catch (final IOException ioe) {
+            buildInfo.println(Messages.console_contentIndex_ignored(helper.hideUserInfo(url), ioe.getLocalizedMessage()));
+            return CifsContentIndex.empty(CifsContentIndex.DEFAULT_MAX_ENTRIES);
+        }
+    }
+
+    /**
+     * The index only saves work, so failing to write it does not fail the transfer set.
+     */
+    private void writeContentIndex() {
+        if (!contentIndex.isChanged()) return;
+        final String url = baseUrl + CifsContentIndex.FILE_NAME;
+        try (OutputStream out = client.createFile(url).getOutputStream()) {
+            contentIndex.write(out);
+        } catch (final IOException ioe) {
+            buildInfo.println(Messages.console_contentIndex_writeFailed(helper.hideUserInfo(url), ioe.getLocalizedMessage()));
+        }
+    }
+
+}
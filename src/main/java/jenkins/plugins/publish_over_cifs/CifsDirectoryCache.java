@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remote directories known to exist and be readable, so that each one is checked at most once. Kept in the build info
+ * so that every client in the build, including those created for a retry, shares what has already been found. Every
+ * client that deletes, renames or replaces a directory, or hands it to the {@link CifsTombstoneReaper}, forgets it and
+ * everything below it here.
+ */
+final class CifsDirectoryCache implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+    static final String CTX_KEY_DIRECTORY_CACHE = "cifs.directoryCache";
+
+    private final Set<String> directories = ConcurrentHashMap.newKeySet();
+
+    static CifsDirectoryCache get(final BPBuildInfo buildInfo) {
+        synchronized (buildInfo) {
+            CifsDirectoryCache cache = (CifsDirectoryCache) buildInfo.get(CTX_KEY_DIRECTORY_CACHE);
+            if (cache == null) {
+                cache = new CifsDirectoryCache();
+                buildInfo.put(CTX_KEY_DIRECTORY_CACHE, cache);
+            }
+            return cache;
+        }
+    }
+
+    boolean contains(final String directoryUrl) {
+        return directories.contains(directoryUrl);
+    }
+
+    void add(final String directoryUrl) {
+        directories.add(directoryUrl);
+    }
+
+    /**
+     * Add a directory that mkdirs has just created, along with the parents it created on the way, up to but not
+     * including the root.
+     */
+    void addWithParents(final String directoryUrl, final String rootUrl) {
+        String url = directoryUrl;
+        while (url.length() > rootUrl.length() && url.startsWith(rootUrl)) {
+            if (!directories.add(url)) return;
+            url = url.substring(0, url.lastIndexOf('/', url.length() - 2) + 1);
+        }
+    }
+
+    /** Forget a directory that has been deleted, renamed or replaced, and every directory below it. */
+    void removeTree(final String directoryUrl) {
+        directories.removeIf(url -> url.startsWith(directoryUrl));
+    }
+
+    /** Forget every directory below the given one, which itself still exists. */
+    void removeBelow(final String directoryUrl) {
+        directories.removeIf(url -> url.length() > directoryUrl.length() && url.startsWith(directoryUrl));
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.FilePath;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Works out every directory a transfer set will write to, and creates them all before the files arrive rather than one
+ * at a time as each file needs its directory. Directories are created a level at a time, with each level created in
+ * parallel.
+ * <p>
+ * This is only an optimisation - anything that fails here is left for the transfer to create as usual.
+ */
+final class CifsDirectoryCreator {
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final CifsDirectoryCache directories;
+    /** directories to create once cleanRemote has emptied the remote directory */
+    private Set<String> pending;
+
+    CifsDirectoryCreator(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+                         final CifsDirectoryCache directories) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.directories = directories;
+    }
+
+    void prepare(final CifsTransfer transfer) {
+        pending = null;
+        try {
+            final String root = client.resolveTransferRoot(transfer);
+            final Set<String> targets = new HashSet<>();
+            for (final FilePath filePath : transfer.getSourceFiles(buildInfo)) {
+                final String relativePath = transfer.isFlatten() ? "" : buildInfo.getRelativePath(filePath, transfer.getRemovePrefix());
+                String url = relativePath.isEmpty() ? root : root + StringUtils.strip(relativePath, "/") + '/';
+                while (url.length() > baseUrl.length() && targets.add(url)) {
+                    url = url.substring(0, url.lastIndexOf('/', url.length() - 2) + 1);
+                }
+            }
+            if (transfer.isCleanRemote()) {
+                // deleteTree is about to empty the remote directory, so wait until it has
+                targets.removeIf(url -> !url.startsWith(root) || url.equals(root));
+                pending = targets;
+            } else {
+                create(targets);
+            }
+        } catch (final IOException | RuntimeException e) {
+            buildInfo.println(Messages.console_mkdir_tree_failed(e.getLocalizedMessage()));
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Create the directories that were waiting for the remote directory to be emptied.
+     */
+    void createPending() {
+        if (pending == null) return;
+        final Set<String> urls = pending;
+        pending = null;
+        try {
+            create(urls);
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void create(final Set<String> urls) throws InterruptedException {
+        final TreeMap<Integer, List<String>> levels = new TreeMap<>();
+        int count = 0;
+        for (final String url : urls) {
+            if (directories.contains(url)) continue;
+            levels.computeIfAbsent(StringUtils.countMatches(url, "/"), depth -> new ArrayList<>()).add(url);
+            count++;
+        }
+        if (levels.isEmpty()) return;
+        if (buildInfo.isVerbose()) buildInfo.println(Messages.console_mkdir_tree(count, levels.size()));
+        final Set<String> created = ConcurrentHashMap.newKeySet();
+        for (final List<String> level : levels.values()) {
+            final CifsUploadQueue queue = new CifsUploadQueue(client.getParallelism(), "CIFS mkdir in " + helper.hideUserInfo(baseUrl));
+            for (final String url : level) {
+                queue.submit(url, () -> {
+                    final SmbFile dir = client.createFile(url);
+                    try {
+                        dir.mkdir();
+                        created.add(url);
+                    } catch (final SmbException smbe) {
+                        // most likely already there
+                        if (!dir.exists()) throw smbe;
+                    }
+                    directories.add(url);
+                });
+            }
+            for (final CifsUploadQueue.Failure failure : queue.await()) {
+                if (buildInfo.isVerbose()) buildInfo.println(Messages.console_mkdir_tree_failed(failure.getCause().getLocalizedMessage()));
+            }
+        }
+        for (final String url : created) client.createdEmpty(url);
+    }
+
+}
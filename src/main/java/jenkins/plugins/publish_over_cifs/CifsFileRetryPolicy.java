@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbException;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import jenkins.plugins.publish_over_cifs.options.CifsFileRetryOptions;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Serial;
+import java.io.Serializable;
+import java.net.MalformedURLException;
+import java.nio.file.FileSystemException;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often, and how patiently, a failed file upload is tried again before the failure is passed on to the publisher.
+ * The wait doubles after each attempt up to a ceiling, and is randomised between half and all of that so that uploads
+ * that failed together do not all come back at once. Only failures that another attempt could get past are retried.
+ */
+public final class CifsFileRetryPolicy implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+    static final String CTX_KEY_FILE_RETRY = "cifs.fileRetry";
+    public static final int DEFAULT_FILE_RETRIES = 0;
+    public static final long DEFAULT_DELAY = 1000;
+    public static final long DEFAULT_MAX_DELAY = 30_000;
+    public static final long DEFAULT_MAX_ELAPSED = 300_000;
+    static final CifsFileRetryPolicy NONE = new CifsFileRetryPolicy(0, 0, 0, 0);
+    /** answers from the server that will be the same however often the file is sent */
+    private static final Set<Integer> PERMANENT_STATUS = Set.of(
+            NtStatus.NT_STATUS_ACCESS_DENIED, NtStatus.NT_STATUS_LOGON_FAILURE, NtStatus.NT_STATUS_WRONG_PASSWORD,
+            NtStatus.NT_STATUS_NO_SUCH_USER, NtStatus.NT_STATUS_ACCOUNT_DISABLED, NtStatus.NT_STATUS_ACCOUNT_LOCKED_OUT,
+            NtStatus.NT_STATUS_PASSWORD_EXPIRED, NtStatus.NT_STATUS_BAD_NETWORK_NAME, NtStatus.NT_STATUS_OBJECT_NAME_INVALID,
+            NtStatus.NT_STATUS_OBJECT_PATH_NOT_FOUND, NtStatus.NT_STATUS_OBJECT_PATH_SYNTAX_BAD);
+
+    private final int retries;
+    private final long delay;
+    private final long maxDelay;
+    private final long maxElapsed;
+
+    CifsFileRetryPolicy(final int retries, final long delay, final long maxDelay, final long maxElapsed) {
+        this.retries = Math.max(0, retries);
+        this.delay = delay > 0 ? delay : DEFAULT_DELAY;
+        this.maxDelay = Math.max(this.delay, maxDelay > 0 ? maxDelay : DEFAULT_MAX_DELAY);
+        this.maxElapsed = maxElapsed > 0 ? maxElapsed : DEFAULT_MAX_ELAPSED;
+    }
+
+    static CifsFileRetryPolicy of(final CifsFileRetryOptions options) {
+        if (options == null || options.getFileRetries() <= 0) return NONE;
+        return new CifsFileRetryPolicy(options.getFileRetries(), options.getFileRetryDelay(), options.getFileRetryMaxDelay(),
+                                       options.getFileRetryMaxElapsed());
+    }
+
+    static CifsFileRetryPolicy get(final BPBuildInfo buildInfo) {
+        final CifsFileRetryPolicy policy = (CifsFileRetryPolicy) buildInfo.get(CTX_KEY_FILE_RETRY);
+        return policy == null ? NONE : policy;
+    }
+
+    /**
+     * @param retry the retry about to be made, starting at 1
+     * @param elapsed milliseconds since the first attempt started
+     * @return milliseconds to wait before the retry, or -1 to give up
+     */
+    long getDelay(final int retry, final long elapsed) {
+        if (retry > retries) return -1;
+        long ceiling = delay;
+        for (int i = 1; i < retry && ceiling < maxDelay; i++) ceiling *= 2;
+        ceiling = Math.min(ceiling, maxDelay);
+        final long wait = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling - ceiling / 2 + 1);
+        return elapsed + wait > maxElapsed ? -1 : wait;
+    }
+
+    /**
+     * @return true if the failure came from the network or the server having a bad moment, rather than from the
+     *         configuration, permissions or the local file, which no amount of retrying will change
+     */
+    static boolean isTransient(final Throwable failure) {
+        if (failure instanceof SmbException smbe) return !PERMANENT_STATUS.contains(smbe.getNtStatus());
+        if (failure instanceof InterruptedIOException || failure instanceof MalformedURLException
+                || failure instanceof FileSystemException) return false;
+        // raised for configuration and permission problems, only worth retrying for the I/O failure it wraps
+        if (failure instanceof BapPublisherException) return failure.getCause() != null && isTransient(failure.getCause());
+        if (failure instanceof IOException) return failure.getCause() == null || isTransient(failure.getCause());
+        return false;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+}
@@ -75,6 +75,15 @@ public class CifsHelper {
         }
     }
 
+    public void mkdir(final SmbFile file, final String url) {
+        try {
+            file.mkdir();
+        } catch (final SmbException smbe) {
+            throw new BapPublisherException(Messages.exception_jCifsException_mkdir(
+                    hideUserInfo(url), smbe.getLocalizedMessage()), smbe);
+        }
+    }
+
     public String hideUserInfo(final String url) {
         if (url.contains("@"))
             return CifsHostConfiguration.SMB_URL_PREFIX + "******" + url.substring(url.indexOf('@'));
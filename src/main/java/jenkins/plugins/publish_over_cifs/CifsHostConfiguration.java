@@ -50,7 +50,14 @@ import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
 
 @SuppressWarnings("PMD.CyclomaticComplexity") // yeah that encode method ain't great, but we want it to be reasonably quick
 public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Object> {
@@ -70,6 +77,7 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
 
     //hard coded value because apache IOUtils doesn't provide any method to get the default value of buffer size
     public static final int DEFAULT_BUFFER_SIZE = 4 * 1024;
+    public static final int DEFAULT_PARALLELISM = 1;
 
     private static final String RESOLVE_WITH_WINS = "LMHOSTS,WINS,DNS,BCAST";
     private static final String RESOLVE_WITHOUT_WINS = "LMHOSTS,DNS,BCAST";
@@ -82,13 +90,21 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
     private static final int LOW_NIBBLE_BIT_MASK = 0xF;
     private static final int HEX_LETTERS_START_AT = 10;
     private static final int HI_TO_LOW_NIBBLE_BIT_SHIFT = 4;
+    private static final int LIMIT_PUBLISHES = 0;
+    private static final int LIMIT_STREAMS = 1;
+    private static final int LIMIT_BYTES_PER_SECOND = 2;
 
     public static int getDefaultPort() { return DEFAULT_PORT; }
     public static int getDefaultTimeout() { return DEFAULT_TIMEOUT; }
     public static int getDefaultBufferSize() { return DEFAULT_BUFFER_SIZE; }
+    public static int getDefaultParallelism() { return DEFAULT_PARALLELISM; }
 
     private int timeout;
     private int bufferSize;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private long maxBytesPerSecond;
+    private int maxConcurrentPublishes;
+    private int maxConcurrentStreams;
     private SmbVersions smbVersion = SmbVersions.SMB_V2;
 
     public enum SmbVersions {
@@ -146,29 +162,328 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
         }
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    @DataBoundSetter
+    public void setParallelism(final int parallelism) {
+        if(parallelism > 0) {
+            this.parallelism = parallelism;
+        }
+    }
+
+    public long getMaxBytesPerSecond() {
+        return maxBytesPerSecond;
+    }
+
+    /**
+     * Limit the bytes per second written to this host by every build, 0 for no limit. Every host configuration for the
+     * server shares the lowest limit that any of them sets.
+     */
+    @DataBoundSetter
+    public void setMaxBytesPerSecond(final long maxBytesPerSecond) {
+        this.maxBytesPerSecond = Math.max(0, maxBytesPerSecond);
+    }
+
+    public int getMaxConcurrentPublishes() {
+        return maxConcurrentPublishes;
+    }
+
+    /**
+     * Limit the publishes, from every build, connected to this host at the same time, 0 for no limit. Every host
+     * configuration for the server shares the lowest limit that any of them sets.
+     */
+    @DataBoundSetter
+    public void setMaxConcurrentPublishes(final int maxConcurrentPublishes) {
+        this.maxConcurrentPublishes = Math.max(0, maxConcurrentPublishes);
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Limit the files, or ranges of files, that every build writes to this host at the same time, 0 for no limit. Every
+     * host configuration for the server shares the lowest limit that any of them sets.
+     */
+    @DataBoundSetter
+    public void setMaxConcurrentStreams(final int maxConcurrentStreams) {
+        this.maxConcurrentStreams = Math.max(0, maxConcurrentStreams);
+    }
+
     @Override
     public CifsClient createClient(final BPBuildInfo buildInfo) {
-        assertRequiredOptions();
+        final List<CifsHostConfiguration> hosts = withFanOut(buildInfo);
+        final List<CifsHostLimits.Permit> permits;
+        if (buildInfo.get(CifsPublisher.CTX_KEY_PUBLISH_PERMITS) == null) {
+            permits = acquirePublishes(buildInfo, hosts);
+        } else {
+            // the publisher holds the permits for all of its transfer sets, and releases them when they have all finished
+            permits = new ArrayList<>(Collections.nCopies(hosts.size(), CifsHostLimits.Permit.NONE));
+        }
+        final List<CifsClient> clients = new ArrayList<>(hosts.size());
+        try {
+            for (int i = 0; i < hosts.size(); i++) clients.add(hosts.get(i).connect(buildInfo, permits.get(i)));
+        } catch (RuntimeException re) {
+            for (final CifsClient client : clients) client.disconnectQuietly();
+            // the permits not yet handed to a client, releasing one twice does no harm
+            for (int i = clients.size(); i < permits.size(); i++) permits.get(i).release();
+            throw re;
+        }
+        final CifsClient client = clients.get(0);
+        if (clients.size() > 1) client.fanOutTo(clients.subList(1, clients.size()));
+        return client;
+    }
+
+    /**
+     * Take the publish permits for a publisher whose transfer sets publish at the same time, so that the publisher counts
+     * once against the limits however many clients its transfer sets connect. Put them into the build info as
+     * {@link CifsPublisher#CTX_KEY_PUBLISH_PERMITS} for the clients not to take their own.
+     */
+    List<CifsHostLimits.Permit> acquirePublishes(final BPBuildInfo buildInfo) {
+        return acquirePublishes(buildInfo, withFanOut(buildInfo));
+    }
+
+    /**
+     * @return this host configuration and the ones that the publisher fans out to
+     */
+    private List<CifsHostConfiguration> withFanOut(final BPBuildInfo buildInfo) {
+        @SuppressWarnings("unchecked")
+        final List<CifsHostConfiguration> fanOut = (List<CifsHostConfiguration>) buildInfo.get(CifsPublisher.CTX_KEY_FAN_OUT);
+        final List<CifsHostConfiguration> hosts = new ArrayList<>();
+        hosts.add(this);
+        if (fanOut != null) hosts.addAll(fanOut);
+        for (final CifsHostConfiguration hostConfig : hosts) hostConfig.assertRequiredOptions();
+        return hosts;
+    }
+
+    /**
+     * Take a publish permit for each host configuration in the same order in every build, sorted on the limits they
+     * share, so that builds fanning out to the same hosts in a different order cannot each hold a permit that the other
+     * is waiting for. Host configurations that share limits share one permit, the others get {@link CifsHostLimits.Permit#NONE}.
+     * @return the permit for each host configuration, in the same order
+     */
+    static List<CifsHostLimits.Permit> acquirePublishes(final BPBuildInfo buildInfo, final List<CifsHostConfiguration> hosts) {
+        final TreeMap<String, CifsHostConfiguration> byLimits = new TreeMap<>();
+        for (final CifsHostConfiguration hostConfig : hosts) byLimits.putIfAbsent(hostConfig.getLimitsKey(), hostConfig);
+        final Map<String, CifsHostLimits.Permit> taken = new HashMap<>();
+        try {
+            for (final Map.Entry<String, CifsHostConfiguration> entry : byLimits.entrySet())
+                taken.put(entry.getKey(), entry.getValue().acquirePublish(buildInfo));
+        } catch (RuntimeException re) {
+            for (final CifsHostLimits.Permit permit : taken.values()) permit.release();
+            throw re;
+        }
+        final List<CifsHostLimits.Permit> permits = new ArrayList<>(hosts.size());
+        for (final CifsHostConfiguration hostConfig : hosts) {
+            final CifsHostLimits.Permit permit = taken.remove(hostConfig.getLimitsKey());
+            permits.add(permit == null ? CifsHostLimits.Permit.NONE : permit);
+        }
+        return permits;
+    }
+
+    private CifsClient connect(final BPBuildInfo buildInfo, final CifsHostLimits.Permit permit) {
         final String url = buildUrl(false);
+        final String winsServer = (String) buildInfo.get(CifsPublisher.CTX_KEY_WINS_SERVER);
+        printConfig(buildInfo, winsServer);
+
+        final CifsHostLimits limits = getLimits(buildInfo);
+        final String who = describeBuild(buildInfo);
+        final int effective = priorityOf(buildInfo);
+        final CifsMetrics.Sink metrics = (CifsMetrics.Sink) buildInfo.get(CifsMetrics.CTX_KEY_METRICS);
+        final long start = System.nanoTime();
+        try {
+            final CifsClient client = openClient(buildInfo, url, winsServer, getServerLimits(buildInfo)[LIMIT_BYTES_PER_SECOND]);
+            client.setHostLimits(limits, permit, who, effective);
+            client.setMetrics(getName(), metrics);
+            final long connected = System.nanoTime() - start;
+            client.getMetrics().time(CifsMetrics.Operation.CONNECT, connected, false);
+            final CifsTransferReportAction.Sink report = (CifsTransferReportAction.Sink) buildInfo.get(CifsTransferReportAction.CTX_KEY_REPORT);
+            if (report != null) client.setReport(report, TimeUnit.NANOSECONDS.toMillis(connected));
+            return client;
+        } catch (RuntimeException re) {
+            permit.release();
+            final CifsMetrics.Sample failed = new CifsMetrics.Sample();
+            failed.time(CifsMetrics.Operation.CONNECT, System.nanoTime() - start, true);
+            CifsMetrics.flush(metrics, getName(), failed);
+            throw re;
+        }
+    }
+
+    /**
+     * Wait for a place among the publishes that every build may have connected to the host.
+     */
+    @SuppressWarnings("PMD.PreserveStackTrace")
+    private CifsHostLimits.Permit acquirePublish(final BPBuildInfo buildInfo) {
+        final int priority = priorityOf(buildInfo);
+        final long limit = getServerLimits(buildInfo)[LIMIT_PUBLISHES];
+        try {
+            final CifsHostLimits.Permit permit = getLimits(buildInfo).acquirePublish(describeBuild(buildInfo), priority,
+                    () -> buildInfo.println(Messages.console_hostLimits_queued(buildUrl(true), limit, priority)));
+            if (permit.getWaited() > 0) buildInfo.println(Messages.console_hostLimits_publishWait(buildUrl(true), permit.getWaited()));
+            return permit;
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new BapPublisherException(Messages.exception_hostLimits_interrupted(buildUrl(true)));
+        }
+    }
+
+    private String getHostKey() {
+        return getHostnameTrimmed() + ":" + getPort();
+    }
+
+    /**
+     * @return the key of the limits that this host configuration shares with the others that publish to the same server
+     */
+    private String getLimitsKey() {
+        return getHostKey();
+    }
+
+    private CifsHostLimits getLimits(final BPBuildInfo buildInfo) {
+        final long[] limits = getServerLimits(buildInfo);
+        return CifsHostLimits.forHost(getLimitsKey(), (int) limits[LIMIT_PUBLISHES], (int) limits[LIMIT_STREAMS]);
+    }
 
-        CIFSContext context = null;
+    /**
+     * The lowest limits, other than 0, that the host configurations ask for on each server, worked out on the controller
+     * so that every configuration for a server applies the same limits wherever it publishes from.
+     * @return the publish, stream and bandwidth limits for each server
+     */
+    static HashMap<String, long[]> lowestServerLimits(final Iterable<CifsHostConfiguration> hostConfigs) {
+        final HashMap<String, long[]> lowest = new HashMap<>();
+        for (final CifsHostConfiguration hostConfig : hostConfigs)
+            lowest.merge(hostConfig.getLimitsKey(), hostConfig.getRequestedLimits(), CifsHostConfiguration::lowest);
+        return lowest;
+    }
+
+    private long[] getServerLimits(final BPBuildInfo buildInfo) {
+        @SuppressWarnings("unchecked")
+        final Map<String, long[]> servers = (Map<String, long[]>) buildInfo.get(CifsPublisher.CTX_KEY_SERVER_LIMITS);
+        final long[] server = servers == null ? null : servers.get(getLimitsKey());
+        // this configuration may not have been saved yet
+        return server == null ? getRequestedLimits() : lowest(server, getRequestedLimits());
+    }
+
+    private long[] getRequestedLimits() {
+        return new long[] {maxConcurrentPublishes, maxConcurrentStreams, maxBytesPerSecond};
+    }
+
+    private static long[] lowest(final long[] some, final long[] others) {
+        final long[] lowest = new long[some.length];
+        for (int i = 0; i < lowest.length; i++) {
+            lowest[i] = some[i] == 0 ? others[i] : others[i] == 0 ? some[i] : Math.min(some[i], others[i]);
+        }
+        return lowest;
+    }
+
+    private static int priorityOf(final BPBuildInfo buildInfo) {
+        final Integer priority = (Integer) buildInfo.get(CifsPublisher.CTX_KEY_PRIORITY);
+        return priority == null ? CifsPublisher.DEFAULT_PRIORITY : priority;
+    }
+
+    private static String describeBuild(final BPBuildInfo buildInfo) {
+        final String tag = buildInfo.getEnvVars() == null ? null : buildInfo.getEnvVars().get("BUILD_TAG");
+        return tag == null ? buildInfo.getConsoleMsgPrefix() : tag;
+    }
+
+    /**
+     * @return the publishes waiting for this host, best first, for the configuration page
+     */
+    public List<CifsHostLimits.Waiting> getWaitingPublishes() {
+        final CifsHostLimits limits = CifsHostLimits.find(getLimitsKey());
+        return limits == null ? Collections.emptyList() : limits.getWaitingPublishes();
+    }
+
+    /**
+     * @return the streams waiting for this host, best first, for the configuration page
+     */
+    public List<CifsHostLimits.Waiting> getWaitingStreams() {
+        final CifsHostLimits limits = CifsHostLimits.find(getLimitsKey());
+        return limits == null ? Collections.emptyList() : limits.getWaitingStreams();
+    }
+
+    public int getActivePublishes() {
+        final CifsHostLimits limits = CifsHostLimits.find(getLimitsKey());
+        return limits == null ? 0 : limits.getActivePublishes();
+    }
+
+    public int getActiveStreams() {
+        final CifsHostLimits limits = CifsHostLimits.find(getLimitsKey());
+        return limits == null ? 0 : limits.getActiveStreams();
+    }
+
+    private CifsClient openClient(final BPBuildInfo buildInfo, final String url, final String winsServer,
+                                  final long bytesPerSecond) {
+        CifsContextPool.Lease lease;
         try {
-            context = configureJcifs(buildInfo);
+            lease = CifsContextPool.get().borrow(createPoolKey(winsServer), () -> createContext(winsServer));
         } catch(CIFSException e) {
             buildInfo.printIfVerbose(Messages.exception_jCifsException_testConfig(url, e.getMessage()));
+            lease = CifsContextPool.unpooled(withCredentials(SingletonContext.getInstance()));
+        }
+        if (buildInfo.isVerbose()) {
+            buildInfo.println(lease.isReused() ? Messages.console_pool_reused(buildUrl(true))
+                                               : Messages.console_pool_created(buildUrl(true)));
+            buildInfo.println(CifsContextPool.get().getStats().toString());
         }
 
-        if(context == null) {
-            context = SingletonContext.getInstance();
+        final CifsConnectPhases phases = new CifsConnectPhases(lease.isReused());
+        try {
+            testConfig(lease.getContext(), url, phases);
+        } catch (RuntimeException re) {
+            lease.release();
+            final CifsMetrics.Sample failed = new CifsMetrics.Sample();
+            phases.recordTo(failed);
+            CifsMetrics.flush((CifsMetrics.Sink) buildInfo.get(CifsMetrics.CTX_KEY_METRICS), getName(), failed);
+            throw re;
+        } finally {
+            if (buildInfo.isVerbose()) printPhases(buildInfo, phases);
+        }
+        final CifsClient client = new CifsClient(lease, buildInfo, url, bufferSize, parallelism);
+        phases.recordTo(client.getMetrics());
+        // a configuration with no limit of its own still shares the limit that another one sets for the server
+        if (bytesPerSecond > 0) {
+            buildInfo.printIfVerbose(Messages.console_throttle_limit(buildUrl(true), bytesPerSecond));
+            client.setLimiter(CifsBandwidthLimiter.forHost(getLimitsKey(), bytesPerSecond));
         }
+        return client;
+    }
 
+    private void printPhases(final BPBuildInfo buildInfo, final CifsConnectPhases phases) {
+        buildInfo.println(Messages.console_connect_phases(buildUrl(true), phases.getMillis(phases.first()),
+                phases.getMillis(CifsConnectPhases.Phase.CAN_READ)));
+        if (phases.getFailed() != null) buildInfo.println(Messages.console_connect_phaseFailed(phases.getFailed()));
+    }
+
+    private CifsContextPool.Key createPoolKey(final String winsServer) {
+        return new CifsContextPool.Key(getHostnameTrimmed(), getPort(), smbVersion, timeout, winsServer,
+                                       getDomain(), getUsername(false), getPassword());
+    }
+
+    private CIFSContext createContext(final String winsServer) throws CIFSException {
+        return withCredentials(configureJcifs(winsServer));
+    }
+
+    private CIFSContext withCredentials(final CIFSContext context) {
         final NtlmPasswordAuthentication auth = new NtlmPasswordAuthentication(context, getDomain(), getUsername(false), getPassword());
-        context = context.withCredentials(auth);
-        testConfig(context, url);
-        return new CifsClient(context, buildInfo, url, bufferSize);
+        return context.withCredentials(auth);
     }
 
-    private CIFSContext configureJcifs(final BPBuildInfo buildInfo) throws CIFSException {
+    private void printConfig(final BPBuildInfo buildInfo, final String winsServer) {
+        if (winsServer == null) {
+            buildInfo.printIfVerbose(Messages.console_config_noWins());
+        } else {
+            buildInfo.printIfVerbose(Messages.console_config_wins(winsServer));
+        }
+        if (buildInfo.isVerbose()) {
+            buildInfo.println(Messages.console_config_timout(timeout));
+            buildInfo.println(Messages.console_config_soTimeout(timeout + SO_TIMEOUT_AFTER));
+            buildInfo.println(Messages.console_config_bufferSize(bufferSize));
+        }
+    }
+
+    private CIFSContext configureJcifs(final String winsServer) throws CIFSException {
         Properties props = new Properties();
 
         if(smbVersion == SmbVersions.SMB_V2 || smbVersion == SmbVersions.SMB_V3) {
@@ -176,22 +491,14 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
             props.put(CONFIG_PROPERTY_DISABLE_SMB1, "false");
         }
 
-        final String winsServer = (String) buildInfo.get(CifsPublisher.CTX_KEY_WINS_SERVER);
         final int soTimeout = timeout + SO_TIMEOUT_AFTER;
         if (winsServer == null) {
-            buildInfo.printIfVerbose(Messages.console_config_noWins());
             props.remove(CONFIG_PROPERTY_WINS);
             props.put(CONFIG_PROPERTY_RESOLVE_ORDER, RESOLVE_WITHOUT_WINS);
         } else {
-            buildInfo.printIfVerbose(Messages.console_config_wins(winsServer));
             props.put(CONFIG_PROPERTY_WINS, winsServer);
             props.put(CONFIG_PROPERTY_RESOLVE_ORDER, RESOLVE_WITH_WINS);
         }
-        if (buildInfo.isVerbose()) {
-            buildInfo.println(Messages.console_config_timout(timeout));
-            buildInfo.println(Messages.console_config_soTimeout(soTimeout));
-            buildInfo.println(Messages.console_config_bufferSize(bufferSize));
-        }
 
         props.put(CONFIG_PROPERTY_TIMEOUT, Integer.toString(timeout));
         props.put(CONFIG_PROPERTY_SO_TIMEOUT, Integer.toString(soTimeout));
@@ -270,7 +577,7 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
     }
 
     @SuppressWarnings({ "PMD.PreserveStackTrace", "PMD.JUnit4TestShouldUseTestAnnotation" }) // FFS
-    private void testConfig(final CIFSContext context, final String url) {
+    private void testConfig(final CIFSContext context, final String url, final CifsConnectPhases phases) {
         SmbFile file;
         try {
             file = createSmbFile(context, url);
@@ -278,8 +585,10 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
             throw new BapPublisherException(Messages.exception_malformedUrlException(buildUrl(true)));
         }
         try {
-            if (!file.exists()) throw new BapPublisherException(Messages.exception_shareNotExist(buildUrl(true)));
-            if (!file.canRead()) throw new BapPublisherException(Messages.exception_cannotReadShare(buildUrl(true)));
+            if (!phases.time(phases.first(), file::exists))
+                throw new BapPublisherException(Messages.exception_shareNotExist(buildUrl(true)));
+            if (!phases.time(CifsConnectPhases.Phase.CAN_READ, file::canRead))
+                throw new BapPublisherException(Messages.exception_cannotReadShare(buildUrl(true)));
         } catch (final SmbException smbe) {
             throw new BapPublisherException(Messages.exception_jCifsException_testConfig(buildUrl(true), smbe.getLocalizedMessage()), smbe);
         }
@@ -324,19 +633,31 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
     protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
         return super.addToHashCode(builder)
             .append(timeout)
-            .append(bufferSize);
+            .append(bufferSize)
+            .append(parallelism)
+            .append(maxBytesPerSecond)
+            .append(maxConcurrentPublishes)
+            .append(maxConcurrentStreams);
     }
 
     protected EqualsBuilder addToEquals(final EqualsBuilder builder, final CifsHostConfiguration that) {
         return super.addToEquals(builder, that)
             .append(timeout, that.timeout)
-            .append(bufferSize, that.bufferSize);
+            .append(bufferSize, that.bufferSize)
+            .append(parallelism, that.parallelism)
+            .append(maxBytesPerSecond, that.maxBytesPerSecond)
+            .append(maxConcurrentPublishes, that.maxConcurrentPublishes)
+            .append(maxConcurrentStreams, that.maxConcurrentStreams);
     }
 
     protected ToStringBuilder addToToString(final ToStringBuilder builder) {
         return super.addToToString(builder)
             .append("timeout", timeout)
-            .append("bufferSize", bufferSize);
+            .append("bufferSize", bufferSize)
+            .append("parallelism", parallelism)
+            .append("maxBytesPerSecond", maxBytesPerSecond)
+            .append("maxConcurrentPublishes", maxConcurrentPublishes)
+            .append("maxConcurrentStreams", maxConcurrentStreams);
     }
 
     public boolean equals(final Object that) {
@@ -362,6 +683,9 @@ public class CifsHostConfiguration extends BPHostConfiguration<CifsClient, Objec
         if(bufferSize <= 0) {
             bufferSize = DEFAULT_BUFFER_SIZE;
         }
+        if(parallelism <= 0) {
+            parallelism = DEFAULT_PARALLELISM;
+        }
         return super.readResolve();
     }
 
@@ -0,0 +1,265 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jenkins.util.SystemProperties;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * JVM wide limits on how many publishes, and how many streams, write to one server at the same time.
+ * <p>
+ * The limits protect the server, so every host configuration for the server shares them and waits in the same queue.
+ * They are set to the lowest limit, other than 0, that any of those host configurations asks for.
+ * <p>
+ * Builds that find no free place wait, blocked rather than polling, until one is given to them. Places go to the waiter
+ * with the highest priority, and among equals to the one that has waited longest. Every {@link #DEFAULT_AGING_MILLIS}
+ * spent waiting counts as one more point of priority, so that a steady stream of important publishes cannot starve the
+ * rest. As every waiter ages at the same rate, aging is settled once, when a build starts to wait: it is placed as if
+ * it had arrived one aging period earlier for each point of priority, and the queue stays in that order.
+ * <p>
+ * A limit of 0 means no limit. Changing a limit applies to everyone waiting for the server. Publishes and streams are
+ * counted even while there is no limit, so that a limit set while they are running takes them into account.
+ */
+final class CifsHostLimits {
+
+    static final long DEFAULT_AGING_MILLIS = SystemProperties.getLong(CifsHostLimits.class.getName() + ".agingMillis",
+                                                                      TimeUnit.MINUTES.toMillis(1));
+    private static final Map<String, CifsHostLimits> HOSTS = new ConcurrentHashMap<>();
+
+    /**
+     * The limits shared by everything that publishes to the host, set to the given values.
+     */
+    static CifsHostLimits forHost(final String host, final int maxPublishes, final int maxStreams) {
+        final CifsHostLimits limits = HOSTS.computeIfAbsent(host, key -> new CifsHostLimits(DEFAULT_AGING_MILLIS));
+        limits.setLimits(maxPublishes, maxStreams);
+        return limits;
+    }
+
+    /**
+     * @return the limits of the host, or null if nothing has published to it since Jenkins started
+     */
+    static CifsHostLimits find(final String host) {
+        return HOSTS.get(host);
+    }
+
+    private final Limit publishes;
+    private final Limit streams;
+
+    CifsHostLimits(final long agingMillis) {
+        publishes = new Limit(agingMillis);
+        streams = new Limit(agingMillis);
+    }
+
+    void setLimits(final int maxPublishes, final int maxStreams) {
+        publishes.setLimit(maxPublishes);
+        streams.setLimit(maxStreams);
+    }
+
+    /**
+     * Wait for a place among the publishes to the host.
+     * @param onQueued run before waiting, if no place is free
+     */
+    Permit acquirePublish(final String who, final int priority, final Runnable onQueued) throws InterruptedException {
+        return publishes.acquirePermit(who, priority, onQueued);
+    }
+
+    Permit acquireStream(final String who, final int priority) throws InterruptedException {
+        return streams.acquirePermit(who, priority, () -> { });
+    }
+
+    List<Waiting> getWaitingPublishes() { return publishes.getWaiting(); }
+
+    List<Waiting> getWaitingStreams() { return streams.getWaiting(); }
+
+    int getActivePublishes() { return publishes.getInUse(); }
+
+    int getActiveStreams() { return streams.getInUse(); }
+
+    /**
+     * A place taken in one of the queues, given back by {@link #release()}.
+     */
+    static final class Permit {
+        static final Permit NONE = new Permit(null, 0);
+        private final Limit limit;
+        private final long waited;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(final Limit limit, final long waited) {
+            this.limit = limit;
+            this.waited = waited;
+        }
+
+        /** milliseconds spent in the queue */
+        long getWaited() { return waited; }
+
+        void release() {
+            if (limit != null && released.compareAndSet(false, true)) limit.release();
+        }
+    }
+
+    /**
+     * Someone in a queue, as it was when the queue was looked at.
+     */
+    static final class Waiting {
+        private final String who;
+        private final int priority;
+        private final long effectivePriority;
+        private final long waited;
+
+        private Waiting(final String who, final int priority, final long effectivePriority, final long waited) {
+            this.who = who;
+            this.priority = priority;
+            this.effectivePriority = effectivePriority;
+            this.waited = waited;
+        }
+
+        public String getWho() { return who; }
+
+        public int getPriority() { return priority; }
+
+        /** the priority after aging, which decides who goes next */
+        public long getEffectivePriority() { return effectivePriority; }
+
+        /** seconds spent in the queue */
+        public long getWaited() { return waited; }
+    }
+
+    private static final class Waiter {
+        /** first the earliest aged arrival, then the earliest real one */
+        static final Comparator<Waiter> ORDER = Comparator.<Waiter>comparingLong(waiter -> waiter.agedSince)
+                .thenComparingLong(waiter -> waiter.sequence);
+        private final String who;
+        private final int priority;
+        private final long since = System.nanoTime();
+        private final long agedSince;
+        private final long sequence;
+        private boolean granted;
+
+        Waiter(final String who, final int priority, final long agingNanos, final long sequence) {
+            this.who = who;
+            this.priority = priority;
+            this.agedSince = agedSince(since, priority, agingNanos);
+            this.sequence = sequence;
+        }
+
+        private static long agedSince(final long since, final int priority, final long agingNanos) {
+            try {
+                return Math.subtractExact(since, Math.multiplyExact(priority, agingNanos));
+            } catch (final ArithmeticException ae) {
+                // a priority so far out that it goes first, or last, whoever else is waiting
+                return priority > 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+        }
+    }
+
+    private static final class Limit {
+        private final long agingNanos;
+        private final PriorityQueue<Waiter> waiters = new PriorityQueue<>(Waiter.ORDER);
+        private long arrivals;
+        private int limit;
+        private int inUse;
+
+        Limit(final long agingMillis) {
+            agingNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(agingMillis));
+        }
+
+        synchronized int getInUse() { return inUse; }
+
+        synchronized void setLimit(final int limit) {
+            this.limit = Math.max(0, limit);
+            grant();
+        }
+
+        Permit acquirePermit(final String who, final int priority, final Runnable onQueued) throws InterruptedException {
+            final Waiter waiter;
+            synchronized (this) {
+                // counted with no limit too, in case one is set before it is given back
+                if (limit <= 0 || waiters.isEmpty() && inUse < limit) {
+                    inUse++;
+                    return new Permit(this, 0);
+                }
+                waiter = new Waiter(who, priority, agingNanos, arrivals++);
+                waiters.add(waiter);
+            }
+            onQueued.run();
+            synchronized (this) {
+                try {
+                    while (!waiter.granted) wait();
+                } catch (final InterruptedException ie) {
+                    waiters.remove(waiter);
+                    // given a place just as we were interrupted, pass it on
+                    if (waiter.granted) release();
+                    throw ie;
+                }
+            }
+            return new Permit(this, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.since));
+        }
+
+        synchronized void release() {
+            inUse--;
+            grant();
+        }
+
+        /**
+         * Hand free places to the best waiters. With no limit, everyone waiting goes.
+         */
+        private void grant() {
+            boolean granted = false;
+            while (!waiters.isEmpty() && (limit <= 0 || inUse < limit)) {
+                final Waiter best = waiters.poll();
+                best.granted = true;
+                inUse++;
+                granted = true;
+            }
+            if (granted) notifyAll();
+        }
+
+        private long effectivePriority(final Waiter waiter, final long now) {
+            return waiter.priority + (now - waiter.since) / agingNanos;
+        }
+
+        synchronized List<Waiting> getWaiting() {
+            final long now = System.nanoTime();
+            final List<Waiter> ordered = new ArrayList<>(waiters);
+            // the order grant() will pick them in
+            ordered.sort(Waiter.ORDER);
+            final List<Waiting> waiting = new ArrayList<>(ordered.size());
+            for (final Waiter waiter : ordered) {
+                waiting.add(new Waiting(waiter.who, waiter.priority, effectivePriority(waiter, now),
+                                        TimeUnit.NANOSECONDS.toSeconds(now - waiter.since)));
+            }
+            return waiting;
+        }
+    }
+
+}
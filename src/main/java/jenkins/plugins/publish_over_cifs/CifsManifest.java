@@ -0,0 +1,252 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serial;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Record of the size and SHA-256 of every file published below a remote directory.
+ * <p>
+ * Paths are only held as 64 bit FNV-1a hashes, and the entries that were read from the share are kept in flat sorted
+ * arrays, so a manifest for hundreds of thousands of files is a few bulk reads and a few tens of MB rather than a graph of
+ * strings. On the share each entry is a fixed 48 bytes: path hash, size, digest.
+ */
+final class CifsManifest {
+
+    static final String FILE_NAME = ".cifs-manifest";
+    static final int DIGEST_LENGTH = 32;
+    private static final int MAGIC = 0x43494653;
+    private static final int VERSION = 1;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final byte[] REMOVED = new byte[0];
+    /** magic, version, entry count */
+    private static final int HEADER_SIZE = 3 * Integer.BYTES;
+    /** path hash, size, digest */
+    private static final int ENTRY_SIZE = 2 * Long.BYTES + DIGEST_LENGTH;
+
+    private final long[] hashes;
+    private final long[] sizes;
+    private final byte[] digests;
+    /** changes made during this publish, keyed on path hash - a digest of REMOVED marks a deleted entry */
+    private final TreeMap<Long, Entry> updates = new TreeMap<>();
+
+    private CifsManifest(final long[] hashes, final long[] sizes, final byte[] digests) {
+        this.hashes = hashes;
+        this.sizes = sizes;
+        this.digests = digests;
+    }
+
+    static CifsManifest empty() {
+        return new CifsManifest(new long[0], new long[0], new byte[0]);
+    }
+
+    /**
+     * @param length the length of the file, the entry count in the header must account for all of it so that a truncated
+     *        or corrupt manifest is rejected before any arrays are sized from it
+     */
+    static CifsManifest read(final InputStream in, final long length) throws IOException {
+        final DataInputStream data = new DataInputStream(new BufferedInputStream(in, STREAM_BUFFER_SIZE));
+        if (length < HEADER_SIZE || data.readInt() != MAGIC || data.readInt() != VERSION)
+            throw new IOException(Messages.exception_manifest_format());
+        final int count = data.readInt();
+        if (count < 0 || (long) count * ENTRY_SIZE != length - HEADER_SIZE) throw new IOException(Messages.exception_manifest_format());
+        final long[] hashes = new long[count];
+        final long[] sizes = new long[count];
+        final byte[] digests = new byte[count * DIGEST_LENGTH];
+        for (int i = 0; i < count; i++) {
+            hashes[i] = data.readLong();
+            sizes[i] = data.readLong();
+            data.readFully(digests, i * DIGEST_LENGTH, DIGEST_LENGTH);
+            if (i > 0 && hashes[i] <= hashes[i - 1]) throw new IOException(Messages.exception_manifest_format());
+        }
+        return new CifsManifest(hashes, sizes, digests);
+    }
+
+    /**
+     * Write the entries that were read, merged with the changes made since, in path hash order.
+     */
+    synchronized void write(final OutputStream out) throws IOException {
+        final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, STREAM_BUFFER_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(VERSION);
+        data.writeInt(size());
+        final Iterator<Map.Entry<Long, Entry>> changes = updates.entrySet().iterator();
+        Map.Entry<Long, Entry> change = changes.hasNext() ? changes.next() : null;
+        int index = 0;
+        while (index < hashes.length || change != null) {
+            if (change == null || (index < hashes.length && hashes[index] < change.getKey())) {
+                data.writeLong(hashes[index]);
+                data.writeLong(sizes[index]);
+                data.write(digests, index * DIGEST_LENGTH, DIGEST_LENGTH);
+                index++;
+            } else {
+                if (index < hashes.length && hashes[index] == change.getKey()) index++;
+                if (change.getValue().digest != REMOVED) {
+                    data.writeLong(change.getKey());
+                    data.writeLong(change.getValue().size);
+                    data.write(change.getValue().digest);
+                }
+                change = changes.hasNext() ? changes.next() : null;
+            }
+        }
+        data.flush();
+    }
+
+    synchronized boolean matches(final String path, final long size, final byte[] digest) {
+        final long hash = hash(path);
+        final Entry change = updates.get(hash);
+        if (change != null) return change.size == size && Arrays.equals(change.digest, digest);
+        final int index = Arrays.binarySearch(hashes, hash);
+        return index >= 0 && sizes[index] == size
+                && Arrays.equals(digests, index * DIGEST_LENGTH, (index + 1) * DIGEST_LENGTH, digest, 0, digest.length);
+    }
+
+    synchronized void put(final String path, final long size, final byte[] digest) {
+        updates.put(hash(path), new Entry(size, digest));
+    }
+
+    synchronized void remove(final String path) {
+        updates.put(hash(path), new Entry(0, REMOVED));
+    }
+
+    /**
+     * Remove every entry whose path is not one of the given paths.
+     */
+    synchronized void retainOnly(final Collection<String> paths) {
+        final Set<Long> keep = new HashSet<>();
+        for (final String path : paths) keep.add(hash(path));
+        for (final long hash : hashes) {
+            if (!keep.contains(hash)) updates.put(hash, new Entry(0, REMOVED));
+        }
+        for (final Map.Entry<Long, Entry> change : updates.entrySet()) {
+            if (!keep.contains(change.getKey())) change.setValue(new Entry(0, REMOVED));
+        }
+    }
+
+    synchronized int size() {
+        int size = hashes.length;
+        for (final Map.Entry<Long, Entry> change : updates.entrySet()) {
+            final boolean existing = Arrays.binarySearch(hashes, change.getKey()) >= 0;
+            if (change.getValue().digest == REMOVED) {
+                if (existing) size--;
+            } else if (!existing) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    static long hash(final String path) {
+        long hash = FNV_OFFSET_BASIS;
+        for (final byte b : path.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static final class Entry {
+        private final long size;
+        private final byte[] digest;
+
+        Entry(final long size, final byte[] digest) {
+            this.size = size;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * SHA-256 of a file, calculated on the node that holds it so that only the digest crosses the channel.
+     */
+    static final class Sha256 extends MasterToSlaveFileCallable<byte[]> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public byte[] invoke(final File file, final VirtualChannel channel) throws IOException {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException nsae) {
+                throw new IOException(nsae);
+            }
+            final byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                int read;
+                while ((read = in.read(buffer)) != -1) digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        }
+    }
+
+    /**
+     * SHA-256 of many files on the node that holds them, in one call, keyed on their remote path.
+     */
+    @SuppressWarnings("PMD.LooseCoupling") // serializable
+    static final class Sha256All extends MasterToSlaveFileCallable<HashMap<String, byte[]>> {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final ArrayList<String> paths;
+
+        Sha256All(final Collection<String> paths) {
+            this.paths = new ArrayList<>(paths);
+        }
+
+        @Override
+        public HashMap<String, byte[]> invoke(final File file, final VirtualChannel channel) throws IOException {
+            final Sha256 sha256 = new Sha256();
+            final HashMap<String, byte[]> digests = new HashMap<>();
+            for (final String path : paths) digests.put(path, sha256.invoke(new File(path), channel));
+            return digests;
+        }
+    }
+
+}
@@ -0,0 +1,293 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.remoting.Channel;
+import net.sf.json.JSONObject;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Counters and latency histograms of what publishes did to each host configuration, since Jenkins started.
+ * <p>
+ * Each client records into its own {@link Sample}, and hands it to the {@link Sink} that the controller put into the
+ * build context at the end of every transfer set and when it disconnects. On an agent the sink is a proxy to the one
+ * on the controller, so the figures of every publish end up here, for one remote call per transfer set.
+ */
+public final class CifsMetrics {
+
+    public static final String CTX_KEY_METRICS = "cifs.metrics";
+    private static final Logger LOGGER = Logger.getLogger(CifsMetrics.class.getName());
+    private static final CifsMetrics INSTANCE = new CifsMetrics();
+
+    public static CifsMetrics get() { return INSTANCE; }
+
+    /** host configuration name -> everything recorded for it */
+    private final Map<String, Sample> hosts = new ConcurrentHashMap<>();
+
+    CifsMetrics() { }
+
+    public enum Operation {
+        CONNECT("createClient"),
+        TRANSFER_FILE("transferFile"),
+        MAKE_DIRECTORY("makeDirectory"),
+        CHANGE_DIRECTORY("changeDirectory"),
+        DELETE_TREE("deleteTree"),
+        CONNECT_NEW("createClient.connect"),
+        CONNECT_EXISTS("createClient.exists"),
+        CONNECT_CAN_READ("createClient.canRead");
+
+        private final String key;
+
+        Operation(final String key) {
+            this.key = key;
+        }
+
+        public String getKey() { return key; }
+    }
+
+    public interface Sink {
+        void record(String host, Sample sample);
+    }
+
+    /**
+     * The sink that records here, to put into the build context.
+     */
+    Sink sink() {
+        return new ControllerSink();
+    }
+
+    void record(final String host, final Sample sample) {
+        hosts.computeIfAbsent(host, key -> new Sample()).add(sample);
+    }
+
+    /**
+     * @return a copy of what has been recorded for the host configuration, or null if nothing has been
+     */
+    Sample getHost(final String host) {
+        final Sample sample = hosts.get(host);
+        return sample == null ? null : sample.copy();
+    }
+
+    public JSONObject toJson() {
+        final JSONObject json = new JSONObject();
+        for (final Map.Entry<String, Sample> host : new TreeMap<>(hosts).entrySet()) json.put(host.getKey(), host.getValue().toJson());
+        final JSONObject root = new JSONObject();
+        root.put("hosts", json);
+        return root;
+    }
+
+    /**
+     * Hand what a client recorded to the sink. Metrics are never worth failing a publish for.
+     */
+    static void flush(final Sink sink, final String host, final Sample sample) {
+        if (sink == null) return;
+        final Sample drained = sample.drain();
+        if (drained.isEmpty()) return;
+        try {
+            sink.record(host, drained);
+        } catch (final RuntimeException re) {
+            LOGGER.log(Level.FINE, "Could not record the metrics of " + host, re);
+        }
+    }
+
+    /**
+     * What one client, or every client of a host configuration, did.
+     */
+    public static final class Sample implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final EnumMap<Operation, Histogram> operations = new EnumMap<>(Operation.class);
+        private long bytes;
+
+        synchronized void time(final Operation operation, final long nanos, final boolean failed) {
+            operations.computeIfAbsent(operation, key -> new Histogram()).record(nanos, failed);
+        }
+
+        synchronized void transferred(final long bytes, final long nanos) {
+            this.bytes += bytes;
+            time(Operation.TRANSFER_FILE, nanos, false);
+        }
+
+        /**
+         * Time a call, counting it as failed if it throws.
+         */
+        <T, E extends Exception> T time(final Operation operation, final Timed<T, E> call) throws E {
+            final long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                final T result = call.call();
+                failed = false;
+                return result;
+            } finally {
+                time(operation, System.nanoTime() - start, failed);
+            }
+        }
+
+        synchronized void add(final Sample other) {
+            final Sample copy = other.copy();
+            bytes += copy.bytes;
+            for (final Map.Entry<Operation, Histogram> entry : copy.operations.entrySet())
+                operations.computeIfAbsent(entry.getKey(), key -> new Histogram()).add(entry.getValue());
+        }
+
+        synchronized Sample copy() {
+            final Sample copy = new Sample();
+            copy.bytes = bytes;
+            for (final Map.Entry<Operation, Histogram> entry : operations.entrySet())
+                copy.operations.put(entry.getKey(), entry.getValue().copy());
+            return copy;
+        }
+
+        synchronized Sample drain() {
+            final Sample drained = copy();
+            operations.clear();
+            bytes = 0;
+            return drained;
+        }
+
+        synchronized boolean isEmpty() {
+            return operations.isEmpty() && bytes == 0;
+        }
+
+        public synchronized long getBytes() { return bytes; }
+
+        public synchronized Histogram getOperation(final Operation operation) {
+            final Histogram histogram = operations.get(operation);
+            return histogram == null ? new Histogram() : histogram.copy();
+        }
+
+        synchronized JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            final Histogram files = operations.get(Operation.TRANSFER_FILE);
+            json.put("files", files == null ? 0 : files.getCount() - files.getFailures());
+            json.put("bytes", bytes);
+            final JSONObject timings = new JSONObject();
+            for (final Map.Entry<Operation, Histogram> entry : operations.entrySet())
+                timings.put(entry.getKey().getKey(), entry.getValue().toJson());
+            json.put("operations", timings);
+            return json;
+        }
+    }
+
+    /**
+     * Counts of calls by how long they took, in buckets that each hold the calls that took no longer than their bound.
+     */
+    public static final class Histogram implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        /** upper bounds of the buckets in milliseconds, the last bucket holds everything slower */
+        static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10_000, 30_000, 60_000};
+
+        private final long[] buckets = new long[BOUNDS.length + 1];
+        private long count;
+        private long failures;
+        private long totalNanos;
+        private long maxNanos;
+
+        void record(final long nanos, final boolean failed) {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket]) bucket++;
+            buckets[bucket]++;
+            count++;
+            if (failed) failures++;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        void add(final Histogram other) {
+            for (int i = 0; i < buckets.length; i++) buckets[i] += other.buckets[i];
+            count += other.count;
+            failures += other.failures;
+            totalNanos += other.totalNanos;
+            maxNanos = Math.max(maxNanos, other.maxNanos);
+        }
+
+        Histogram copy() {
+            final Histogram copy = new Histogram();
+            copy.add(this);
+            return copy;
+        }
+
+        public long getCount() { return count; }
+
+        public long getFailures() { return failures; }
+
+        public long getTotalMillis() { return TimeUnit.NANOSECONDS.toMillis(totalNanos); }
+
+        public long getMaxMillis() { return TimeUnit.NANOSECONDS.toMillis(maxNanos); }
+
+        public long getBucket(final int index) { return buckets[index]; }
+
+        JSONObject toJson() {
+            final JSONObject json = new JSONObject();
+            json.put("count", count);
+            json.put("failures", failures);
+            json.put("totalMillis", getTotalMillis());
+            json.put("maxMillis", getMaxMillis());
+            json.put("meanMillis", count == 0 ? 0 : getTotalMillis() / count);
+            final JSONObject histogram = new JSONObject();
+            for (int i = 0; i < BOUNDS.length; i++) histogram.put(String.format(Locale.ROOT, "le_%d", BOUNDS[i]), buckets[i]);
+            histogram.put("le_inf", buckets[BOUNDS.length]);
+            json.put("histogramMillis", histogram);
+            return json;
+        }
+    }
+
+    interface Timed<T, E extends Exception> {
+        T call() throws E;
+    }
+
+    /**
+     * Records on the controller. Sent to an agent, it goes as a proxy that calls back to the controller.
+     */
+    private static final class ControllerSink implements Sink, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void record(final String host, final Sample sample) {
+            get().record(host, sample);
+        }
+
+        @Serial
+        private Object writeReplace() {
+            final Channel channel = Channel.current();
+            return channel == null ? this : channel.export(Sink.class, this);
+        }
+    }
+
+}
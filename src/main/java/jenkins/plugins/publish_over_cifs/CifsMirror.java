@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Deletes whatever is below the remote directory of a transfer set that the transfer set did not send, or find
+ * unchanged, so that the remote directory holds the transfer set and nothing else.
+ * <p>
+ * Each remote directory is listed once, and anything absent from the transfer set is deleted as a whole without looking
+ * inside. Names are compared ignoring case, as Windows shares do.
+ */
+final class CifsMirror {
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final CifsDirectoryCache directories;
+    private final CifsResumeState resumeState;
+    private final CifsCleaner cleaner;
+    private String root;
+    /** paths below the mirror root, relative to it, of everything this transfer set sent or found unchanged */
+    private Set<String> paths;
+
+    CifsMirror(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+               final CifsDirectoryCache directories, final CifsCleaner cleaner) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.directories = directories;
+        this.resumeState = CifsResumeState.get(buildInfo);
+        this.cleaner = cleaner;
+    }
+
+    boolean isMirroring() { return paths != null; }
+
+    String getRoot() { return root; }
+
+    void begin(final String root) {
+        this.root = root;
+        paths = new HashSet<>();
+    }
+
+    void clear() {
+        root = null;
+        paths = null;
+    }
+
+    /**
+     * Keep the file or directory, along with the directories above it.
+     */
+    void keep(final String url) {
+        if (paths != null && url.startsWith(root) && url.length() > root.length())
+            paths.add(url.substring(root.length()));
+    }
+
+    /**
+     * @return the paths that were kept, relative to the mirror root
+     */
+    Set<String> deleteStale() {
+        final Set<String> keep = new HashSet<>();
+        for (final String path : paths) {
+            String kept = path.toLowerCase(Locale.ROOT);
+            while (!kept.isEmpty() && keep.add(kept)) {
+                final int parent = kept.lastIndexOf('/', kept.length() - 2);
+                kept = parent < 0 ? "" : kept.substring(0, parent + 1);
+            }
+        }
+        final List<SmbFile> stale = new ArrayList<>();
+        try {
+            findStale(root, keep, stale);
+            cleaner.delete(stale.toArray(new SmbFile[0]), root);
+        } catch (final IOException ioe) {
+            throw new BapPublisherException(Messages.exception_mirror_failed(helper.hideUserInfo(root), ioe.getLocalizedMessage()), ioe);
+        } finally {
+            // the listings and cached directories no longer match the share
+            client.forgetListingsBelow(root);
+            directories.removeBelow(root);
+            resumeState.forgetBelow(root);
+        }
+        buildInfo.println(Messages.console_mirror_deleted(stale.size(), helper.hideUserInfo(root)));
+        final Set<String> kept = paths;
+        paths = null;
+        return kept;
+    }
+
+    private void findStale(final String directoryUrl, final Set<String> keep, final List<SmbFile> stale) throws IOException {
+        final SmbFile[] files = helper.listFiles(client.createFile(directoryUrl), directoryUrl);
+        if (files == null) throw new BapPublisherException(Messages.exception_listFilesReturnedNull(helper.hideUserInfo(directoryUrl)));
+        for (final SmbFile file : files) {
+            final String name = file.getName();
+            if (name.startsWith(CifsTombstoneReaper.TOMBSTONE_PREFIX) || name.startsWith(CifsClient.STAGING_PREFIX)) continue;
+            if (directoryUrl.equals(root) && name.equals(CifsManifest.FILE_NAME)) continue;
+            if (directoryUrl.equals(baseUrl) && name.equals(CifsContentIndex.FILE_NAME)) continue;
+            final String path = (directoryUrl + name).substring(root.length()).toLowerCase(Locale.ROOT);
+            if (!keep.contains(path)) stale.add(file);
+            else if (file.isDirectory()) findStale(directoryUrl + name, keep, stale);
+        }
+    }
+
+}
@@ -34,6 +34,7 @@ import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.BuildStepMonitor;
 import hudson.tasks.Notifier;
 import hudson.tasks.Publisher;
+import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import jenkins.plugins.publish_over.BPInstanceConfig;
 import jenkins.plugins.publish_over.BPPlugin;
@@ -43,6 +44,8 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.IOException;
@@ -61,6 +64,15 @@ public class CifsPromotionPublisherPlugin extends Notifier implements SimpleBuil
                                                 paramPublish);
     }
 
+    public int getMaxConcurrentPublishers() {
+        return delegate.getMaxConcurrentPublishers();
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPublishers(final int maxConcurrentPublishers) {
+        delegate.setMaxConcurrentPublishers(maxConcurrentPublishers);
+    }
+
     public BPInstanceConfig getInstanceConfig() {
         return delegate.getInstanceConfig();
     }
@@ -126,6 +138,9 @@ public class CifsPromotionPublisherPlugin extends Notifier implements SimpleBuil
         public CifsPublisherPlugin.Descriptor getPublisherDescriptor() {
             return  Jenkins.get().getDescriptorByType(CifsPublisherPlugin.Descriptor.class);
         }
+        public FormValidation doCheckMaxConcurrentPublishers(@QueryParameter final String value) {
+            return getPublisherDescriptor().doCheckMaxConcurrentPublishers(value);
+        }
     }
 
 }
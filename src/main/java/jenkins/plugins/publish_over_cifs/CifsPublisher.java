@@ -24,17 +24,22 @@
 
 package jenkins.plugins.publish_over_cifs;
 
+import hudson.Util;
 import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPHostConfiguration;
 import jenkins.plugins.publish_over.BapPublisher;
+import jenkins.plugins.publish_over.BapPublisherException;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.Serial;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("PMD.LooseCoupling") // serializable
 public class CifsPublisher extends BapPublisher<CifsTransfer> {
@@ -44,6 +49,16 @@ public class CifsPublisher extends BapPublisher<CifsTransfer> {
     public static final String CTX_KEY_NODE_PROPERTIES_DEFAULT = "cifs.np.default";
     public static final String CTX_KEY_NODE_PROPERTIES_CURRENT = "cifs.np.current";
     public static final String CTX_KEY_WINS_SERVER = "cifs.winsServer";
+    public static final String CTX_KEY_FAN_OUT_HOSTS = "cifs.fanOutHosts";
+    public static final String CTX_KEY_FAN_OUT = "cifs.fanOut";
+    public static final String CTX_KEY_SERVER_LIMITS = "cifs.serverLimits";
+    public static final String CTX_KEY_PRIORITY = "cifs.priority";
+    public static final String CTX_KEY_PUBLISH_PERMITS = "cifs.publishPermits";
+    public static final String CTX_KEY_TRANSFER_SET = "cifs.transferSet";
+    public static final int DEFAULT_PRIORITY = 0;
+    private String fanOut;
+    private int concurrentTransferSets = 1;
+    private int priority = DEFAULT_PRIORITY;
 
     @DataBoundConstructor
     public CifsPublisher(final String configName, final boolean verbose, final ArrayList<CifsTransfer> transfers,
@@ -62,9 +77,108 @@ public class CifsPublisher extends BapPublisher<CifsTransfer> {
             final CifsCleanNodeProperties current = (CifsCleanNodeProperties) buildInfo.get(CTX_KEY_NODE_PROPERTIES_CURRENT);
             if (!storeWinsServer(buildInfo, current)) storeWinsServer(buildInfo, defaults);
         }
+        buildInfo.put(CifsFileRetryPolicy.CTX_KEY_FILE_RETRY, CifsFileRetryPolicy.of(getRetry()));
+        buildInfo.put(CTX_KEY_FAN_OUT, resolveFanOut(buildInfo));
+        buildInfo.put(CTX_KEY_PRIORITY, priority);
+        final CifsResumeState state = CifsResumeState.get(buildInfo);
+        state.beginPublisher();
+        final int retriesBefore = state.getRetries();
+        try {
+            if (concurrentTransferSets > 1 && getTransfers().size() > 1) {
+                final List<CifsHostLimits.Permit> permits = ((CifsHostConfiguration) hostConfig).acquirePublishes(buildInfo);
+                buildInfo.put(CTX_KEY_PUBLISH_PERMITS, permits);
+                try {
+                    CifsConcurrentTransfers.run(getTransfers(), concurrentTransferSets, buildInfo,
+                            (index, setBuildInfo) -> {
+                                setBuildInfo.put(CTX_KEY_TRANSFER_SET, index);
+                                forTransferSet(getTransfers().get(index)).performTransferSet(hostConfig, setBuildInfo);
+                            });
+                } finally {
+                    buildInfo.put(CTX_KEY_PUBLISH_PERMITS, null);
+                    for (final CifsHostLimits.Permit permit : permits) permit.release();
+                }
+            } else {
+                super.perform(hostConfig, buildInfo);
+            }
+        } finally {
+            final int retried = state.getRetries() - retriesBefore;
+            if (retried > 0) buildInfo.println(Messages.console_retry_total(retried, state.getRetries()));
+        }
+    }
+
+    /**
+     * @return a publisher like this one that only has the given transfer set
+     */
+    private CifsPublisher forTransferSet(final CifsTransfer transfer) {
+        final ArrayList<CifsTransfer> transfers = new ArrayList<>(1);
+        transfers.add(transfer);
+        final CifsPublisher publisher = new CifsPublisher(getConfigName(), isVerbose(), transfers, isUseWorkspaceInPromotion(),
+                                                          isUsePromotionTimestamp(), getRetry(), (CifsPublisherLabel) getLabel());
+        publisher.fanOut = fanOut;
+        publisher.priority = priority;
+        return publisher;
+    }
+
+    @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+    private void performTransferSet(final BPHostConfiguration hostConfig, final BPBuildInfo buildInfo) throws Exception {
         super.perform(hostConfig, buildInfo);
     }
 
+    @SuppressWarnings("unchecked")
+    private ArrayList<CifsHostConfiguration> resolveFanOut(final BPBuildInfo buildInfo) {
+        final ArrayList<CifsHostConfiguration> resolved = new ArrayList<>();
+        final Map<String, CifsHostConfiguration> hosts = (Map<String, CifsHostConfiguration>) buildInfo.get(CTX_KEY_FAN_OUT_HOSTS);
+        for (final String name : getFanOutNames()) {
+            final CifsHostConfiguration hostConfig = hosts == null ? null : hosts.get(name);
+            if (hostConfig == null) throw new BapPublisherException(Messages.exception_fanOut_unknown(name));
+            resolved.add(hostConfig);
+        }
+        return resolved;
+    }
+
+    /**
+     * @return the names of the other host configurations to send the same files to
+     */
+    public List<String> getFanOutNames() {
+        final List<String> names = new ArrayList<>();
+        if (fanOut == null) return names;
+        for (final String name : fanOut.split(",")) {
+            final String trimmed = Util.fixEmptyAndTrim(name);
+            if (trimmed != null && !trimmed.equals(getConfigName()) && !names.contains(trimmed)) names.add(trimmed);
+        }
+        return names;
+    }
+
+    public int getConcurrentTransferSets() {
+        return concurrentTransferSets;
+    }
+
+    @DataBoundSetter
+    public void setConcurrentTransferSets(final int concurrentTransferSets) {
+        this.concurrentTransferSets = Math.max(1, concurrentTransferSets);
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Where this publish goes in the queue of a host configuration that limits its publishes or streams, higher first.
+     */
+    @DataBoundSetter
+    public void setPriority(final int priority) {
+        this.priority = priority;
+    }
+
+    public String getFanOut() {
+        return fanOut;
+    }
+
+    @DataBoundSetter
+    public void setFanOut(final String fanOut) {
+        this.fanOut = Util.fixEmptyAndTrim(fanOut);
+    }
+
     private boolean storeWinsServer(final BPBuildInfo buildInfo, final CifsCleanNodeProperties nodeProperties) {
         if (nodeProperties != null) {
             if (nodeProperties.getWinsServer() != null)
@@ -82,14 +196,17 @@ public class CifsPublisher extends BapPublisher<CifsTransfer> {
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
 
-        return addToEquals(new EqualsBuilder(), (CifsPublisher) that).isEquals();
+        return addToEquals(new EqualsBuilder(), (CifsPublisher) that).append(fanOut, ((CifsPublisher) that).fanOut)
+                .append(concurrentTransferSets, ((CifsPublisher) that).concurrentTransferSets)
+                .append(priority, ((CifsPublisher) that).priority).isEquals();
     }
 
     public int hashCode() {
-        return addToHashCode(new HashCodeBuilder()).toHashCode();
+        return addToHashCode(new HashCodeBuilder()).append(fanOut).append(concurrentTransferSets).append(priority).toHashCode();
     }
 
     public String toString() {
-        return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)).toString();
+        return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)).append("fanOut", fanOut)
+                .append("concurrentTransferSets", concurrentTransferSets).append("priority", priority).toString();
     }
 }
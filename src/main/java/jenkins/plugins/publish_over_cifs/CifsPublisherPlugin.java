@@ -24,13 +24,23 @@
 
 package jenkins.plugins.publish_over_cifs;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.EnvVars;
 import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
 import hudson.Util;
+import hudson.model.AbstractBuild;
 import hudson.model.Node;
+import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
+import java.io.IOException;
 import java.io.PrintStream;
 import jenkins.model.Jenkins;
+import jenkins.plugins.publish_over.BPBuildEnv;
 import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BPInstanceConfig;
 import jenkins.plugins.publish_over.BPPlugin;
 import jenkins.plugins.publish_over.BPPluginDescriptor;
 import jenkins.plugins.publish_over.ParamPublish;
@@ -45,7 +55,9 @@ import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.Serial;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @SuppressWarnings("PMD.LooseCoupling") // serializable
 public class CifsPublisherPlugin extends BPPlugin<CifsPublisher, CifsClient, Object> {
@@ -53,6 +65,7 @@ public class CifsPublisherPlugin extends BPPlugin<CifsPublisher, CifsClient, Obj
     @Serial
     private static final long serialVersionUID = 1L;
     private boolean publishWhenFailed = false;
+    private int maxConcurrentPublishers = 1;
 
     public CifsPublisherPlugin(final ArrayList<CifsPublisher> publishers, final boolean continueOnError, final boolean failOnError,
                                final boolean alwaysPublishFromMaster, final String masterNodeName, final CifsParamPublish paramPublish) {
@@ -71,6 +84,14 @@ public class CifsPublisherPlugin extends BPPlugin<CifsPublisher, CifsClient, Obj
     }
     public boolean getPublishWhenFailed() { return this.publishWhenFailed; }
 
+    @DataBoundSetter
+    public void setMaxConcurrentPublishers(final int maxConcurrentPublishers) {
+        if (maxConcurrentPublishers > 0) {
+            this.maxConcurrentPublishers = maxConcurrentPublishers;
+        }
+    }
+    public int getMaxConcurrentPublishers() { return this.maxConcurrentPublishers; }
+
     public List<CifsPublisher> getPublishers() {
         return this.getDelegate().getPublishers();
     }
@@ -125,6 +146,30 @@ public class CifsPublisherPlugin extends BPPlugin<CifsPublisher, CifsClient, Obj
         this.getDelegate().setParamPublish(paramPublish);
     }
 
+    @Override
+    public void perform(@NonNull final Run<?, ?> run, @NonNull final FilePath workspace, @NonNull final Launcher launcher,
+                        @NonNull final TaskListener listener) throws InterruptedException, IOException {
+        final Map<String, List<CifsPublisher>> byHost = CifsConcurrentPublish.byHost(getPublishers());
+        // a promotion may publish from the build that it promotes, which only the plugin itself looks up
+        if (maxConcurrentPublishers < 2 || byHost.size() < 2 || BPPlugin.PROMOTION_CLASS_NAME.equals(run.getClass().getCanonicalName())) {
+            super.perform(run, workspace, launcher, listener);
+            return;
+        }
+        if (!isBuildGoodEnoughToRun(run, listener.getLogger())) return;
+        final EnvVars env = run.getEnvironment(listener);
+        if (run instanceof AbstractBuild<?, ?> build) env.overrideAll(build.getBuildVariables());
+        final boolean ok = CifsConcurrentPublish.run(byHost, maxConcurrentPublishers, isContinueOnError(), listener, (publishers, buffered) -> {
+            final BPInstanceConfig<CifsPublisher> group = new BPInstanceConfig<>(new ArrayList<>(publishers), isContinueOnError(),
+                    isFailOnError(), isAlwaysPublishFromMaster(), getMasterNodeName(), getParamPublish());
+            final BPBuildInfo buildInfo = new BPBuildInfo(buffered, Messages.console_message_prefix(), Jenkins.get().getRootPath(),
+                    new BPBuildEnv(new EnvVars(env), workspace, run.getTimestamp()), null);
+            fixup(run, buildInfo);
+            return group.perform(this, buildInfo).isBetterOrEqualTo(Result.SUCCESS);
+        });
+        // each host configuration returned its own result instead of setting the build result, so set it once for all of them
+        if (!ok) run.setResult(isFailOnError() ? Result.FAILURE : Result.UNSTABLE);
+    }
+
     @Override
     protected void fixup(final Run<?, ?> build, final BPBuildInfo buildInfo) {
         final Jenkins jenkins = Jenkins.getInstanceOrNull();
@@ -133,7 +178,26 @@ public class CifsPublisherPlugin extends BPPlugin<CifsPublisher, CifsClient, Obj
             if (defaults != null) buildInfo.put(CifsPublisher.CTX_KEY_NODE_PROPERTIES_DEFAULT, map(defaults));
             final String currNodeName = buildInfo.getCurrentBuildEnv().getEnvVars().get(BPBuildInfo.ENV_NODE_NAME);
             storeProperties(buildInfo, jenkins, currNodeName, CifsPublisher.CTX_KEY_NODE_PROPERTIES_CURRENT);
+            storeFanOutHosts(buildInfo);
+            buildInfo.put(CifsPublisher.CTX_KEY_SERVER_LIMITS,
+                          CifsHostConfiguration.lowestServerLimits(getDescriptor().getHostConfigurations()));
+        }
+        buildInfo.put(CifsMetrics.CTX_KEY_METRICS, CifsMetrics.get().sink());
+        buildInfo.put(CifsTransferReportAction.CTX_KEY_REPORT, CifsTransferReportAction.attach(build).sink());
+    }
+
+    /**
+     * The host configurations are only known here on the controller, so look up the ones that publishers fan out to now.
+     */
+    private void storeFanOutHosts(final BPBuildInfo buildInfo) {
+        final HashMap<String, CifsHostConfiguration> hosts = new HashMap<>();
+        for (final CifsPublisher publisher : getPublishers()) {
+            for (final String name : publisher.getFanOutNames()) {
+                final CifsHostConfiguration hostConfig = getConfiguration(name);
+                if (hostConfig != null) hosts.put(name, hostConfig);
+            }
         }
+        if (!hosts.isEmpty()) buildInfo.put(CifsPublisher.CTX_KEY_FAN_OUT_HOSTS, hosts);
     }
 
     private void storeProperties(final BPBuildInfo buildInfo, final Jenkins jenkins, final String nodeName, final String contextKey) {
@@ -153,15 +217,21 @@ public class CifsPublisherPlugin extends BPPlugin<CifsPublisher, CifsClient, Obj
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
 
-        return addToEquals(new EqualsBuilder(), (CifsPublisherPlugin) that).isEquals();
+        return addToEquals(new EqualsBuilder(), (CifsPublisherPlugin) that)
+            .append(maxConcurrentPublishers, ((CifsPublisherPlugin) that).maxConcurrentPublishers)
+            .isEquals();
     }
 
     public int hashCode() {
-        return addToHashCode(new HashCodeBuilder()).toHashCode();
+        return addToHashCode(new HashCodeBuilder())
+            .append(maxConcurrentPublishers)
+            .toHashCode();
     }
 
     public String toString() {
-        return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE)).toString();
+        return addToToString(new ToStringBuilder(this, ToStringStyle.SHORT_PREFIX_STYLE))
+            .append("maxConcurrentPublishers", maxConcurrentPublishers)
+            .toString();
     }
 
     public Descriptor getDescriptor() {
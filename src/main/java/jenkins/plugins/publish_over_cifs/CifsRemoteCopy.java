@@ -0,0 +1,125 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.Util;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Copies the remote source of a transfer set to its remote directory on the server, so that the content never crosses
+ * the network. Each file is copied with jcifs-ng's copyTo, which uses SMB2 server-side copy when the source and target
+ * are on the same share.
+ */
+final class CifsRemoteCopy {
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final CifsDirectoryCache directories;
+    private final CifsMirror mirror;
+    private int copiedFiles;
+    private long copiedBytes;
+
+    CifsRemoteCopy(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+                   final CifsDirectoryCache directories, final CifsMirror mirror) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.directories = directories;
+        this.mirror = mirror;
+    }
+
+    void copy(final CifsTransfer transfer) {
+        String path = Util.replaceMacro(transfer.getRemoteSource(), buildInfo.getEnvVars());
+        path = StringUtils.strip(path.trim().replace('\\', '/'), "/");
+        final String sourceUrl = baseUrl + path;
+        final String targetRoot = client.resolveTransferRoot(transfer);
+        copiedFiles = 0;
+        copiedBytes = 0;
+        try {
+            final SmbFile source = client.createSmbFile(sourceUrl);
+            if (path.isEmpty() || !helper.exists(source, sourceUrl))
+                throw new BapPublisherException(Messages.exception_remoteSource_notFound(helper.hideUserInfo(sourceUrl)));
+            if (source.isDirectory()) {
+                final String sourceDirectory = sourceUrl + '/';
+                if (targetRoot.toLowerCase(Locale.ROOT).startsWith(sourceDirectory.toLowerCase(Locale.ROOT)))
+                    throw new BapPublisherException(Messages.exception_remoteSource_overlaps(helper.hideUserInfo(sourceDirectory),
+                                                                                             helper.hideUserInfo(targetRoot)));
+                copyTree(sourceDirectory, targetRoot);
+            } else {
+                makeTargetDirectory(targetRoot);
+                copyFile(source, targetRoot + source.getName());
+            }
+        } catch (final IOException ioe) {
+            throw new BapPublisherException(Messages.exception_remoteSource_copy(helper.hideUserInfo(sourceUrl), ioe.getLocalizedMessage()), ioe);
+        }
+        buildInfo.println(Messages.console_remoteSource_copied(copiedFiles, copiedBytes, helper.hideUserInfo(sourceUrl)));
+    }
+
+    private void copyTree(final String sourceDirectory, final String targetDirectory) throws IOException {
+        makeTargetDirectory(targetDirectory);
+        final SmbFile[] files = helper.listFiles(client.createSmbFile(sourceDirectory), sourceDirectory);
+        if (files == null) throw new BapPublisherException(Messages.exception_listFilesReturnedNull(helper.hideUserInfo(sourceDirectory)));
+        for (final SmbFile file : files) {
+            // directory names end in a slash
+            if (file.isDirectory()) copyTree(sourceDirectory + file.getName(), targetDirectory + file.getName());
+            else copyFile(file, targetDirectory + file.getName());
+        }
+    }
+
+    private void makeTargetDirectory(final String url) {
+        if (!directories.contains(url)) {
+            final SmbFile target = client.createFile(url);
+            if (!helper.exists(target, url)) helper.mkdirs(target, url);
+            directories.addWithParents(url, baseUrl);
+        }
+        mirror.keep(url);
+    }
+
+    private void copyFile(final SmbFile source, final String targetUrl) throws IOException {
+        final long length = source.length();
+        final CifsResumeState.Progress progress = client.progress();
+        mirror.keep(targetUrl);
+        // the digest of the copy is not known without reading it back
+        client.forgetManifestEntry(targetUrl);
+        if (!progress.isCompleted(client.target(targetUrl), source.getCanonicalPath(), length)) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_remoteSource_copy(helper.hideUserInfo(source.getCanonicalPath()),
+                                                                                            helper.hideUserInfo(targetUrl)));
+            source.copyTo(client.createFile(targetUrl));
+            progress.complete(client.target(targetUrl), source.getCanonicalPath(), length);
+        }
+        copiedFiles++;
+        copiedBytes += length;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What has been written so far by the publisher that is running, kept in the build info so that it outlives the client
+ * that a failed attempt used. When {@link CifsRetry} runs the publisher again, files that completed are not sent again,
+ * and files that were partially written can carry on from where they stopped. Also counts the files that were retried
+ * during the build.
+ * <p>
+ * What was written is kept apart for each share and transfer set, in a {@link Progress}, so that transfer sets that
+ * publish at the same time each only resume from their own failed attempts. Nothing is skipped until an attempt of that
+ * transfer set has failed, and what is known about a directory is forgotten by all of them as soon as it is cleaned or
+ * replaced.
+ */
+final class CifsResumeState implements Serializable {
+
+    @Serial
+    private static final long serialVersionUID = 1L;
+    static final String CTX_KEY_RESUME_STATE = "cifs.resumeState";
+
+    /** share url + '#' + transfer set -> what was written there */
+    private final Map<String, Progress> progress = new ConcurrentHashMap<>();
+    private final AtomicInteger retries = new AtomicInteger();
+
+    static CifsResumeState get(final BPBuildInfo buildInfo) {
+        synchronized (buildInfo) {
+            CifsResumeState state = (CifsResumeState) buildInfo.get(CTX_KEY_RESUME_STATE);
+            if (state == null) {
+                state = new CifsResumeState();
+                buildInfo.put(CTX_KEY_RESUME_STATE, state);
+            }
+            return state;
+        }
+    }
+
+    /**
+     * Forget what the previous publisher wrote, what this one writes may well differ.
+     */
+    void beginPublisher() {
+        progress.clear();
+    }
+
+    /**
+     * @param shareUrl the share that a client writes to
+     * @param transferSet the index of the transfer set in the publisher
+     * @return what every attempt of the transfer set has written to the share so far
+     */
+    Progress of(final String shareUrl, final int transferSet) {
+        return progress.computeIfAbsent(shareUrl + '#' + transferSet, key -> new Progress());
+    }
+
+    /**
+     * Forget everything written at or below a directory that has been cleaned, moved aside or replaced, by whichever
+     * transfer set wrote it.
+     */
+    void forgetBelow(final String directoryUrl) {
+        for (final Progress written : progress.values()) written.forgetBelow(directoryUrl);
+    }
+
+    void recordRetry() {
+        retries.incrementAndGet();
+    }
+
+    int getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * What the attempts of one transfer set have written to one share.
+     */
+    static final class Progress implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        /** url -> the file that was written there, and its length */
+        private final Map<String, Written> completed = new ConcurrentHashMap<>();
+        private final Set<String> started = ConcurrentHashMap.newKeySet();
+        /** url + '@' + range start, for files written as ranges */
+        private final Set<String> completedRanges = ConcurrentHashMap.newKeySet();
+        private volatile boolean resuming;
+
+        /**
+         * An attempt stopped part way through, so the next one may carry on from what it did.
+         */
+        void attemptFailed() {
+            resuming = true;
+        }
+
+        boolean isResuming() {
+            return resuming;
+        }
+
+        boolean isCompleted(final String url, final String source, final long length) {
+            if (!resuming) return false;
+            final Written written = completed.get(url);
+            return written != null && written.length == length && written.source.equals(source);
+        }
+
+        boolean hasCompleted(final String url) {
+            return resuming && completed.containsKey(url);
+        }
+
+        boolean wasStarted(final String url) {
+            return resuming && started.contains(url);
+        }
+
+        void start(final String url) {
+            completed.remove(url);
+            started.add(url);
+        }
+
+        void complete(final String url, final String source, final long length) {
+            started.remove(url);
+            completedRanges.removeIf(range -> range.startsWith(url + '@'));
+            completed.put(url, new Written(source, length));
+        }
+
+        boolean isRangeCompleted(final String url, final long from) {
+            return resuming && completedRanges.contains(url + '@' + from);
+        }
+
+        void completeRange(final String url, final long from) {
+            completedRanges.add(url + '@' + from);
+        }
+
+        private void forgetBelow(final String directoryUrl) {
+            completed.keySet().removeIf(url -> url.startsWith(directoryUrl));
+            started.removeIf(url -> url.startsWith(directoryUrl));
+            completedRanges.removeIf(range -> range.startsWith(directoryUrl));
+        }
+    }
+
+    private static final class Written implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final String source;
+        private final long length;
+
+        Written(final String source, final long length) {
+            this.source = source;
+            this.length = length;
+        }
+    }
+
+}
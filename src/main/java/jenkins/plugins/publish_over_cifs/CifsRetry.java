@@ -25,24 +25,91 @@
 package jenkins.plugins.publish_over_cifs;
 
 import jenkins.plugins.publish_over.Retry;
+import jenkins.plugins.publish_over_cifs.options.CifsFileRetryOptions;
 import org.apache.commons.lang.builder.EqualsBuilder;
 import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.Serial;
 
-public class CifsRetry extends Retry {
+public class CifsRetry extends Retry implements CifsFileRetryOptions {
 
     @Serial
     private static final long serialVersionUID = 1L;
 
+    private int fileRetries;
+    private long fileRetryDelay;
+    private long fileRetryMaxDelay;
+    private long fileRetryMaxElapsed;
+
     @DataBoundConstructor
     public CifsRetry(final int retries, final long retryDelay) {
         super(retries, retryDelay);
     }
 
+    public int getFileRetries() {
+        return fileRetries;
+    }
+
+    @DataBoundSetter
+    public void setFileRetries(final int fileRetries) {
+        this.fileRetries = fileRetries;
+    }
+
+    public long getFileRetryDelay() {
+        return fileRetryDelay;
+    }
+
+    @DataBoundSetter
+    public void setFileRetryDelay(final long fileRetryDelay) {
+        this.fileRetryDelay = fileRetryDelay;
+    }
+
+    public long getFileRetryMaxDelay() {
+        return fileRetryMaxDelay;
+    }
+
+    @DataBoundSetter
+    public void setFileRetryMaxDelay(final long fileRetryMaxDelay) {
+        this.fileRetryMaxDelay = fileRetryMaxDelay;
+    }
+
+    public long getFileRetryMaxElapsed() {
+        return fileRetryMaxElapsed;
+    }
+
+    @DataBoundSetter
+    public void setFileRetryMaxElapsed(final long fileRetryMaxElapsed) {
+        this.fileRetryMaxElapsed = fileRetryMaxElapsed;
+    }
+
+    protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
+        return super.addToHashCode(builder)
+            .append(fileRetries)
+            .append(fileRetryDelay)
+            .append(fileRetryMaxDelay)
+            .append(fileRetryMaxElapsed);
+    }
+
+    protected EqualsBuilder addToEquals(final EqualsBuilder builder, final CifsRetry that) {
+        return super.addToEquals(builder, that)
+            .append(fileRetries, that.fileRetries)
+            .append(fileRetryDelay, that.fileRetryDelay)
+            .append(fileRetryMaxDelay, that.fileRetryMaxDelay)
+            .append(fileRetryMaxElapsed, that.fileRetryMaxElapsed);
+    }
+
+    protected ToStringBuilder addToToString(final ToStringBuilder builder) {
+        return super.addToToString(builder)
+            .append("fileRetries", fileRetries)
+            .append("fileRetryDelay", fileRetryDelay)
+            .append("fileRetryMaxDelay", fileRetryMaxDelay)
+            .append("fileRetryMaxElapsed", fileRetryMaxElapsed);
+    }
+
     public boolean equals(final Object that) {
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
@@ -0,0 +1,193 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends everything below the remote directory of a transfer set to a sibling staging directory instead, so that the
+ * remote directory can be replaced in one go once the transfer set is complete.
+ * <p>
+ * The staging directory is named after the build, so a retry carries on with what the failed attempt already sent.
+ * Staging directories of other builds, which may be concurrent builds of the same job or promotions, are only deleted
+ * in the background once nothing has touched them for {@link CifsClient#DEFAULT_STAGING_ABANDONED_MILLIS}.
+ */
+final class CifsStaging {
+
+    /** how often a build that is staging touches its staging directory to show that it is still in use */
+    private static final long HEARTBEAT_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final CifsDirectoryCache directories;
+    private final CifsResumeState resumeState;
+    /** while staging, everything below stagedRoot is really written below stagingRoot */
+    private String stagedRoot;
+    private String stagingRoot;
+    private final AtomicLong lastHeartbeat = new AtomicLong();
+
+    CifsStaging(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+                final CifsDirectoryCache directories) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.directories = directories;
+        this.resumeState = CifsResumeState.get(buildInfo);
+    }
+
+    boolean isStaging() { return stagingRoot != null; }
+
+    String getStagingRoot() { return stagingRoot; }
+
+    /**
+     * @return true if the url is really written below the staging directory
+     */
+    boolean covers(final String url) {
+        return stagingRoot != null && url.startsWith(stagedRoot);
+    }
+
+    /**
+     * @return the url that a file is really written to, which is below the staging directory while staging
+     */
+    String target(final String url) {
+        return covers(url) ? stagingRoot + url.substring(stagedRoot.length()) : url;
+    }
+
+    void clear() {
+        stagedRoot = null;
+        stagingRoot = null;
+    }
+
+    void begin(final String root) {
+        if (root.length() <= baseUrl.length()) {
+            buildInfo.println(Messages.console_stage_root(helper.hideUserInfo(root)));
+            return;
+        }
+        final String parentUrl = parentOf(root);
+        final String name = nameOf(root);
+        final String stagingName = CifsClient.STAGING_PREFIX + name + '-' + buildInfo.getBuildTime().getTimeInMillis() + '/';
+        final String staging = parentUrl + stagingName;
+        final SmbFile dir = client.createFile(staging);
+        if (!helper.exists(dir, staging)) helper.mkdirs(dir, staging);
+        try {
+            final long abandoned = System.currentTimeMillis() - CifsClient.DEFAULT_STAGING_ABANDONED_MILLIS;
+            for (final SmbFile leftover : client.createFile(parentUrl).listFiles(CifsClient.STAGING_PREFIX + name + "-*")) {
+                if (stagingName.equals(leftover.getName())) continue;
+                if (leftover.lastModified() < abandoned) {
+                    client.reap(parentUrl + leftover.getName(), leftover);
+                } else if (buildInfo.isVerbose()) {
+                    buildInfo.println(Messages.console_stage_inUse(helper.hideUserInfo(leftover.getCanonicalPath())));
+                }
+            }
+        } catch (final SmbException smbe) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_clean_sweepFailed(helper.hideUserInfo(parentUrl), smbe.getLocalizedMessage()));
+        }
+        // what is known about the remote directory says nothing about the staging directory
+        client.forgetListingsBelow(root);
+        directories.removeBelow(root);
+        stagedRoot = root;
+        stagingRoot = staging;
+        lastHeartbeat.set(System.currentTimeMillis());
+        buildInfo.println(Messages.console_stage(helper.hideUserInfo(root), helper.hideUserInfo(staging)));
+    }
+
+    /**
+     * Keep the staging directory recent, so that other builds staging the same directory leave it alone.
+     */
+    void heartbeat() {
+        final long now = System.currentTimeMillis();
+        final long last = lastHeartbeat.get();
+        if (now - last < HEARTBEAT_INTERVAL || !lastHeartbeat.compareAndSet(last, now)) return;
+        try {
+            client.createSmbFile(stagingRoot).setLastModified(now);
+        } catch (final IOException ioe) {
+            if (buildInfo.isVerbose()) buildInfo.println(Messages.console_stage_heartbeatFailed(helper.hideUserInfo(stagingRoot),
+                                                                                                 ioe.getLocalizedMessage()));
+        }
+    }
+
+    /**
+     * Put the staging directory in place of the remote directory with two renames, the old directory first being
+     * renamed to a tombstone that is deleted in the background. If the second rename fails the old directory is put back.
+     */
+    void swap() {
+        final String root = stagedRoot;
+        final String staging = stagingRoot;
+        clear();
+        final String tombstoneUrl = parentOf(root) + CifsTombstoneReaper.tombstoneName(nameOf(root)) + '/';
+        final SmbFile current = client.createFile(root);
+        final SmbFile tombstone = client.createFile(tombstoneUrl);
+        final boolean replacing = helper.exists(current, root);
+        try {
+            if (replacing) current.renameTo(tombstone);
+            try {
+                client.createFile(staging).renameTo(client.createFile(root));
+            } catch (final SmbException smbe) {
+                if (replacing) restore(tombstone, root);
+                throw smbe;
+            }
+        } catch (final SmbException smbe) {
+            throw new BapPublisherException(Messages.exception_stage_swap(helper.hideUserInfo(staging), helper.hideUserInfo(root),
+                                                                          smbe.getLocalizedMessage()), smbe);
+        } finally {
+            client.forgetListingsBelow(root);
+            // the remote directory may not be there at all if a rename failed, and the staging directory has gone
+            directories.removeTree(root);
+            directories.removeTree(staging);
+            resumeState.forgetBelow(root);
+            resumeState.forgetBelow(staging);
+        }
+        if (replacing) client.reap(tombstoneUrl, tombstone);
+        buildInfo.println(Messages.console_stage_swapped(helper.hideUserInfo(root)));
+    }
+
+    private void restore(final SmbFile tombstone, final String root) {
+        try {
+            tombstone.renameTo(client.createFile(root));
+        } catch (final SmbException smbe) {
+            buildInfo.println(Messages.console_stage_restoreFailed(helper.hideUserInfo(tombstone.getCanonicalPath()),
+                                                                   helper.hideUserInfo(root), smbe.getLocalizedMessage()));
+        }
+    }
+
+    static String parentOf(final String directoryUrl) {
+        return directoryUrl.substring(0, directoryUrl.lastIndexOf('/', directoryUrl.length() - 2) + 1);
+    }
+
+    static String nameOf(final String directoryUrl) {
+        return directoryUrl.substring(parentOf(directoryUrl).length(), directoryUrl.length() - 1);
+    }
+
+}
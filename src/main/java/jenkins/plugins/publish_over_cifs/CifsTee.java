@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads a stream once and hands what was read to several readers, each through its own bounded buffer.
+ * <p>
+ * The pump blocks while any open branch has its buffer full, so the slowest reader sets the pace and memory stays
+ * bounded however far ahead the others are. A branch that is closed before the end of the stream stops holding the
+ * others up.
+ */
+final class CifsTee {
+
+    static final int DEFAULT_QUEUED_CHUNKS = 16;
+    private static final byte[] END = new byte[0];
+    private static final long OFFER_WAIT_MILLIS = 100;
+
+    private final InputStream source;
+    private final int chunkSize;
+    private final Branch[] branches;
+
+    CifsTee(final InputStream source, final int branches, final int chunkSize, final int queuedChunks) {
+        this.source = source;
+        this.chunkSize = chunkSize;
+        this.branches = new Branch[branches];
+        for (int i = 0; i < branches; i++) this.branches[i] = new Branch(queuedChunks);
+    }
+
+    InputStream getBranch(final int index) {
+        return branches[index];
+    }
+
+    /**
+     * Read the source to the end, giving each chunk to every branch that is still open. If reading fails, the branches
+     * fail with the same cause once they have read what came before it.
+     */
+    void pump() throws IOException, InterruptedException {
+        final byte[] buffer = new byte[chunkSize];
+        try {
+            int read;
+            while ((read = source.read(buffer)) != -1) {
+                if (read == 0) continue;
+                final byte[] chunk = Arrays.copyOf(buffer, read);
+                for (final Branch branch : branches) branch.offer(chunk);
+            }
+        } catch (final IOException | InterruptedException | RuntimeException e) {
+            // set before the end is offered, so that no branch mistakes a part read stream for a complete one
+            for (final Branch branch : branches) branch.failure = e;
+            throw e;
+        } finally {
+            for (final Branch branch : branches) branch.offer(END);
+        }
+    }
+
+    private static final class Branch extends InputStream {
+
+        private final BlockingQueue<byte[]> queue;
+        private volatile boolean closed;
+        private volatile Exception failure;
+        private byte[] current;
+        private int position;
+
+        Branch(final int queuedChunks) {
+            queue = new ArrayBlockingQueue<>(queuedChunks);
+        }
+
+        void offer(final byte[] chunk) throws InterruptedException {
+            while (!closed) {
+                if (queue.offer(chunk, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS)) return;
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) return -1;
+            return current[position++] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+            if (length == 0) return 0;
+            if (!fill()) return -1;
+            final int read = Math.min(length, current.length - position);
+            System.arraycopy(current, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        private boolean fill() throws IOException {
+            if (current == END) return false;
+            if (current != null && position < current.length) return true;
+            try {
+                current = queue.take();
+            } catch (final InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(ie.getLocalizedMessage());
+            }
+            position = 0;
+            if (current != END) return true;
+            if (failure != null) throw new IOException(failure.getLocalizedMessage(), failure);
+            return false;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            queue.clear();
+        }
+
+    }
+
+}
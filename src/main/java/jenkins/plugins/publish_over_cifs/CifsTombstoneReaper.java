@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jenkins.util.SystemProperties;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Deletes directories that a clean has renamed out of the way, after the build has moved on.
+ * <p>
+ * The work runs on a small JVM wide pool of daemon threads, so that a burst of cleans cannot swamp a file server. A
+ * tombstone that is not deleted, because of an error or because Jenkins stopped, stays on the share. The next clean of
+ * the same directory finds it and queues it again.
+ */
+final class CifsTombstoneReaper {
+
+    private static final Logger LOGGER = Logger.getLogger(CifsTombstoneReaper.class.getName());
+
+    static final String TOMBSTONE_PREFIX = ".cifs-deleted-";
+    public static final int DEFAULT_THREADS = SystemProperties.getInteger(CifsTombstoneReaper.class.getName() + ".threads", 2);
+
+    private static final CifsTombstoneReaper INSTANCE = new CifsTombstoneReaper(DEFAULT_THREADS);
+
+    static CifsTombstoneReaper get() { return INSTANCE; }
+
+    private final ThreadPoolExecutor executor;
+    /** tombstones queued or being deleted, so that a sweep does not queue them twice */
+    private final Set<String> queued = ConcurrentHashMap.newKeySet();
+
+    CifsTombstoneReaper(final int threads) {
+        executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.MINUTES, new LinkedBlockingQueue<>(),
+                                          new NamingThreadFactory(new DaemonThreadFactory(), "CIFS tombstone reaper"));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * The name a clean gives to the directory it moves out of the way. The current time keeps successive names apart.
+     */
+    static String tombstoneName(final String directoryName) {
+        return TOMBSTONE_PREFIX + directoryName + '-' + System.currentTimeMillis();
+    }
+
+    /** Matches every tombstone left by cleans of the directory. */
+    static String tombstoneWildcard(final String directoryName) {
+        return TOMBSTONE_PREFIX + directoryName + "-*";
+    }
+
+    /**
+     * Queue a tombstone for deletion. The lease keeps the context that the tombstone belongs to open, and is released
+     * once the tombstone has gone.
+     */
+    void reap(final SmbFile tombstone, final CifsContextPool.Lease lease) {
+        final String url = tombstone.getCanonicalPath();
+        if (!queued.add(url)) {
+            lease.release();
+            return;
+        }
+        executor.execute(() -> {
+            try {
+                tombstone.delete();
+            } catch (final SmbException smbe) {
+                LOGGER.log(Level.WARNING, "Failed to delete [" + new CifsHelper().hideUserInfo(url) + "], it will be tried again the next time its directory is cleaned", smbe);
+            } finally {
+                queued.remove(url);
+                lease.release();
+            }
+        });
+    }
+
+    int getPending() {
+        return queued.size();
+    }
+
+}
@@ -24,6 +24,9 @@
 
 package jenkins.plugins.publish_over_cifs;
 
+import hudson.FilePath;
+import hudson.Util;
+import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BPTransfer;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.builder.EqualsBuilder;
@@ -31,7 +34,9 @@ import org.apache.commons.lang.builder.HashCodeBuilder;
 import org.apache.commons.lang.builder.ToStringBuilder;
 import org.apache.commons.lang.builder.ToStringStyle;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import java.io.IOException;
 import java.io.Serial;
 
 public class CifsTransfer extends BPTransfer {
@@ -39,6 +44,14 @@ public class CifsTransfer extends BPTransfer {
     @Serial
     private static final long serialVersionUID = 1L;
 
+    private boolean skipUnchanged;
+    private boolean useManifest;
+    private boolean cleanRemoteInBackground;
+    private boolean mirror;
+    private boolean staged;
+    private String remoteSource;
+    private boolean deduplicate;
+
     @DataBoundConstructor
     public CifsTransfer(final String sourceFiles, final String excludes, final String remoteDirectory, final String removePrefix,
                         final boolean remoteDirectorySDF, final boolean flatten, final boolean cleanRemote, final boolean noDefaultExcludes,
@@ -47,6 +60,84 @@ public class CifsTransfer extends BPTransfer {
               noDefaultExcludes, makeEmptyDirs, StringUtils.isEmpty(patternSeparator) ? null : patternSeparator);
     }
 
+    public boolean isSkipUnchanged() { return skipUnchanged; }
+
+    @DataBoundSetter
+    public void setSkipUnchanged(final boolean skipUnchanged) { this.skipUnchanged = skipUnchanged; }
+
+    public boolean isUseManifest() { return useManifest; }
+
+    @DataBoundSetter
+    public void setUseManifest(final boolean useManifest) { this.useManifest = useManifest; }
+
+    public boolean isCleanRemoteInBackground() { return cleanRemoteInBackground; }
+
+    @DataBoundSetter
+    public void setCleanRemoteInBackground(final boolean cleanRemoteInBackground) { this.cleanRemoteInBackground = cleanRemoteInBackground; }
+
+    public boolean isMirror() { return mirror; }
+
+    @DataBoundSetter
+    public void setMirror(final boolean mirror) { this.mirror = mirror; }
+
+    public boolean isStaged() { return staged; }
+
+    @DataBoundSetter
+    public void setStaged(final boolean staged) { this.staged = staged; }
+
+    /**
+     * @return a path on the share to copy to the remote directory on the server, or null to only send Source files
+     */
+    public String getRemoteSource() { return remoteSource; }
+
+    @DataBoundSetter
+    public void setRemoteSource(final String remoteSource) { this.remoteSource = Util.fixEmptyAndTrim(remoteSource); }
+
+    public boolean isDeduplicate() { return deduplicate; }
+
+    @DataBoundSetter
+    public void setDeduplicate(final boolean deduplicate) { this.deduplicate = deduplicate; }
+
+    @Override
+    public FilePath[] getSourceFiles(final BPBuildInfo buildInfo) throws IOException, InterruptedException {
+        // an empty pattern would match the whole workspace
+        if (remoteSource != null && !hasConfiguredSourceFiles()) return new FilePath[0];
+        return super.getSourceFiles(buildInfo);
+    }
+
+    protected HashCodeBuilder addToHashCode(final HashCodeBuilder builder) {
+        return super.addToHashCode(builder)
+            .append(skipUnchanged)
+            .append(useManifest)
+            .append(cleanRemoteInBackground)
+            .append(mirror)
+            .append(staged)
+            .append(remoteSource)
+            .append(deduplicate);
+    }
+
+    protected EqualsBuilder addToEquals(final EqualsBuilder builder, final CifsTransfer that) {
+        return super.addToEquals(builder, that)
+            .append(skipUnchanged, that.skipUnchanged)
+            .append(useManifest, that.useManifest)
+            .append(cleanRemoteInBackground, that.cleanRemoteInBackground)
+            .append(mirror, that.mirror)
+            .append(staged, that.staged)
+            .append(remoteSource, that.remoteSource)
+            .append(deduplicate, that.deduplicate);
+    }
+
+    protected ToStringBuilder addToToString(final ToStringBuilder builder) {
+        return super.addToToString(builder)
+            .append("skipUnchanged", skipUnchanged)
+            .append("useManifest", useManifest)
+            .append("cleanRemoteInBackground", cleanRemoteInBackground)
+            .append("mirror", mirror)
+            .append("staged", staged)
+            .append("remoteSource", remoteSource)
+            .append("deduplicate", deduplicate);
+    }
+
     public boolean equals(final Object that) {
         if (this == that) return true;
         if (that == null || getClass() != that.getClass()) return false;
@@ -0,0 +1,264 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.model.Run;
+import hudson.remoting.Channel;
+import jenkins.model.RunAction2;
+import jenkins.util.SystemProperties;
+
+import java.io.Serial;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What each transfer set of a build sent, how long it took, and which files took longest.
+ * <p>
+ * Only counts and the slowest {@link #DEFAULT_SLOWEST_FILES} files of each transfer set are kept, so the report stays
+ * small however many files a build publishes.
+ */
+public class CifsTransferReportAction implements RunAction2 {
+
+    public static final String CTX_KEY_REPORT = "cifs.report";
+    static final int DEFAULT_SLOWEST_FILES = SystemProperties.getInteger(CifsTransferReportAction.class.getName() + ".slowestFiles", 10);
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private final List<TransferSet> transferSets = new ArrayList<>();
+    private transient Run<?, ?> run;
+
+    /**
+     * @return the report of the run, added to it if it does not have one yet
+     */
+    static CifsTransferReportAction attach(final Run<?, ?> run) {
+        synchronized (run) {
+            CifsTransferReportAction action = run.getAction(CifsTransferReportAction.class);
+            if (action == null) {
+                action = new CifsTransferReportAction();
+                run.addAction(action);
+            }
+            return action;
+        }
+    }
+
+    /**
+     * The sink that adds to this report, to put into the build context.
+     */
+    Sink sink() {
+        return new ControllerSink(this);
+    }
+
+    synchronized void add(final TransferSet transferSet) {
+        transferSets.add(transferSet);
+    }
+
+    public synchronized List<TransferSet> getTransferSets() {
+        return new ArrayList<>(transferSets);
+    }
+
+    public synchronized long getFiles() {
+        long files = 0;
+        for (final TransferSet transferSet : transferSets) files += transferSet.files;
+        return files;
+    }
+
+    public synchronized long getBytes() {
+        long bytes = 0;
+        for (final TransferSet transferSet : transferSets) bytes += transferSet.bytes;
+        return bytes;
+    }
+
+    public Run<?, ?> getRun() { return run; }
+
+    @Override
+    public String getIconFileName() {
+        return "symbol-details";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return Messages.report_displayName();
+    }
+
+    @Override
+    public String getUrlName() {
+        return "cifs-transfers";
+    }
+
+    @Override
+    public void onAttached(final Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(final Run<?, ?> run) {
+        this.run = run;
+    }
+
+    /**
+     * @return MB/s to two decimal places
+     */
+    private static double megabytesPerSecond(final long bytes, final long millis) {
+        return millis <= 0 ? 0 : Math.round(bytes / BYTES_PER_MEGABYTE / (millis / 1000.0) * 100) / 100.0;
+    }
+
+    public interface Sink {
+        void record(TransferSet transferSet);
+    }
+
+    /**
+     * One transfer set sent to one share.
+     */
+    public static final class TransferSet implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String host;
+        private final String description;
+        private final long files;
+        private final long bytes;
+        private final long millis;
+        private final long connectMillis;
+        private final List<FileTiming> slowest;
+
+        TransferSet(final String host, final String description, final long files, final long bytes, final long millis,
+                    final long connectMillis, final List<FileTiming> slowest) {
+            this.host = host;
+            this.description = description;
+            this.files = files;
+            this.bytes = bytes;
+            this.millis = millis;
+            this.connectMillis = connectMillis;
+            this.slowest = slowest;
+        }
+
+        public String getHost() { return host; }
+
+        public String getDescription() { return description; }
+
+        public long getFiles() { return files; }
+
+        public long getBytes() { return bytes; }
+
+        /** wall time from the start of the transfer set to its end */
+        public long getMillis() { return millis; }
+
+        /** time to connect to the share, for the first transfer set of each connection */
+        public long getConnectMillis() { return connectMillis; }
+
+        /** slowest first */
+        public List<FileTiming> getSlowest() { return Collections.unmodifiableList(slowest); }
+
+        public double getMegabytesPerSecond() { return megabytesPerSecond(bytes, millis); }
+    }
+
+    public static final class FileTiming implements Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+
+        private final String path;
+        private final long bytes;
+        private final long millis;
+
+        FileTiming(final String path, final long bytes, final long millis) {
+            this.path = path;
+            this.bytes = bytes;
+            this.millis = millis;
+        }
+
+        public String getPath() { return path; }
+
+        public long getBytes() { return bytes; }
+
+        public long getMillis() { return millis; }
+
+        public double getMegabytesPerSecond() { return megabytesPerSecond(bytes, millis); }
+    }
+
+    /**
+     * Counts the files of one transfer set as they are sent, keeping only the slowest.
+     */
+    static final class Collector {
+        private static final Comparator<FileTiming> FASTEST_FIRST = Comparator.comparingLong(FileTiming::getMillis);
+        private final int keep;
+        private final long started = System.nanoTime();
+        private final PriorityQueue<FileTiming> slowest = new PriorityQueue<>(FASTEST_FIRST);
+        private long files;
+        private long bytes;
+
+        Collector(final int keep) {
+            this.keep = keep;
+        }
+
+        synchronized void file(final String path, final long bytes, final long nanos) {
+            files++;
+            this.bytes += bytes;
+            if (keep <= 0) return;
+            final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            if (slowest.size() < keep) {
+                slowest.add(new FileTiming(path, bytes, millis));
+            } else if (slowest.peek().getMillis() < millis) {
+                slowest.poll();
+                slowest.add(new FileTiming(path, bytes, millis));
+            }
+        }
+
+        synchronized TransferSet finish(final String host, final String description, final long connectMillis) {
+            final List<FileTiming> ordered = new ArrayList<>(slowest);
+            ordered.sort(FASTEST_FIRST.reversed());
+            return new TransferSet(host, description, files, bytes, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+                                   connectMillis, ordered);
+        }
+    }
+
+    /**
+     * Adds to the report on the controller. Sent to an agent, it goes as a proxy that calls back to the controller.
+     */
+    private static final class ControllerSink implements Sink, Serializable {
+        @Serial
+        private static final long serialVersionUID = 1L;
+        private final transient CifsTransferReportAction action;
+
+        ControllerSink(final CifsTransferReportAction action) {
+            this.action = action;
+        }
+
+        @Override
+        public void record(final TransferSet transferSet) {
+            if (action != null) action.add(transferSet);
+        }
+
+        @Serial
+        private Object writeReplace() {
+            final Channel channel = Channel.current();
+            return channel == null ? this : channel.export(Sink.class, this);
+        }
+    }
+
+}
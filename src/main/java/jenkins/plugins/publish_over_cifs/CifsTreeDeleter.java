@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.smb.SmbException;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes remote trees with a fork join pool, so that the entries of each directory are removed in parallel instead of
+ * jcifs walking the tree one entry at a time.
+ * <p>
+ * A failure to delete an entry does not stop the rest of the tree being deleted. Only the directories above the entry
+ * are left in place, and every failure is returned at the end.
+ */
+final class CifsTreeDeleter {
+
+    private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final int parallelism;
+    private final AtomicLong deleted = new AtomicLong();
+    private final Queue<CifsUploadQueue.Failure> failures = new ConcurrentLinkedQueue<>();
+
+    CifsTreeDeleter(final BPBuildInfo buildInfo, final CifsHelper helper, final int parallelism) {
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.parallelism = parallelism;
+    }
+
+    List<CifsUploadQueue.Failure> delete(final SmbFile[] files) throws InterruptedException {
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            final ForkJoinTask<Void> task = pool.submit(() -> {
+                final List<Delete> deletes = new ArrayList<>();
+                for (final SmbFile file : files) {
+                    if (buildInfo.isVerbose()) buildInfo.println(Messages.console_delete(helper.hideUserInfo(file.getCanonicalPath())));
+                    deletes.add(new Delete(file));
+                }
+                ForkJoinTask.invokeAll(deletes);
+                return null;
+            });
+            while (true) {
+                try {
+                    task.get(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (final TimeoutException te) {
+                    buildInfo.println(Messages.console_clean_progress(deleted.get(), failures.size()));
+                } catch (final ExecutionException ee) {
+                    failures.add(new CifsUploadQueue.Failure("", ee.getCause()));
+                    break;
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return new ArrayList<>(failures);
+    }
+
+    long getDeleted() {
+        return deleted.get();
+    }
+
+    private final class Delete extends RecursiveTask<Boolean> {
+
+        private final SmbFile file;
+
+        Delete(final SmbFile file) {
+            this.file = file;
+        }
+
+        @Override
+        protected Boolean compute() {
+            try {
+                if (file.isDirectory()) {
+                    final SmbFile[] children = file.listFiles();
+                    final List<Delete> deletes = new ArrayList<>(children.length);
+                    for (final SmbFile child : children) deletes.add(new Delete(child));
+                    boolean empty = true;
+                    for (final Delete delete : ForkJoinTask.invokeAll(deletes)) empty &= delete.join();
+                    // the failures below have already been recorded
+                    if (!empty) return false;
+                }
+                file.delete();
+                deleted.incrementAndGet();
+                return true;
+            } catch (final SmbException smbe) {
+                failures.add(new CifsUploadQueue.Failure(file.getCanonicalPath(), smbe));
+                return false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs file operations on a fixed number of worker threads, remembering which ones failed.
+ * <p>
+ * At most two tasks per worker are queued at any time, so submitting blocks rather than queueing an unbounded
+ * number of pending files.
+ */
+final class CifsUploadQueue {
+
+    private static final int QUEUED_PER_WORKER = 2;
+
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final List<Failure> failures = Collections.synchronizedList(new ArrayList<>());
+
+    CifsUploadQueue(final int parallelism, final String name) {
+        executor = Executors.newFixedThreadPool(parallelism, new NamingThreadFactory(new DaemonThreadFactory(), name));
+        slots = new Semaphore(parallelism * QUEUED_PER_WORKER);
+    }
+
+    void submit(final String url, final Task task) throws InterruptedException {
+        slots.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (final Exception | Error e) {
+                    failures.add(new Failure(url, e));
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (final RuntimeException re) {
+            slots.release();
+            throw re;
+        }
+    }
+
+    /**
+     * Wait for every submitted task to finish.
+     * @return the tasks that failed, in the order that they failed
+     */
+    List<Failure> await() throws InterruptedException {
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            // keep waiting - the individual operations are bounded by the jcifs timeouts
+        }
+        synchronized (failures) {
+            return new ArrayList<>(failures);
+        }
+    }
+
+    void abort() {
+        executor.shutdownNow();
+    }
+
+    interface Task {
+        @SuppressWarnings("PMD.SignatureDeclareThrowsException")
+        void run() throws Exception;
+    }
+
+    static final class Failure {
+        private final String url;
+        private final Throwable cause;
+
+        Failure(final String url, final Throwable cause) {
+            this.url = url;
+            this.cause = cause;
+        }
+
+        String getUrl() { return url; }
+
+        Throwable getCause() { return cause; }
+    }
+
+}
@@ -0,0 +1,376 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.FilePath;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jcifs.SmbRandomAccess;
+import jcifs.smb.SmbFile;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.apache.commons.io.IOUtils;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes files to the share for a client, retrying a file that fails for a transient reason and carrying on from what
+ * an earlier attempt of the build wrote.
+ * <p>
+ * Every write counts against the streams of the client and the streams that every build may have open to the host.
+ * A large file is written in ranges at once when the client has parallel streams, each range through its own handle.
+ */
+final class CifsUploader {
+
+    private static final int MIN_RANGE_BUFFER_SIZE = 64 * 1024;
+    /** smaller files are simply written again rather than resumed */
+    private static final long MIN_RESUME_LENGTH = 1024 * 1024;
+    private static final int RESUME_VERIFY_LENGTH = 64 * 1024;
+    private static final long THROUGHPUT_REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private final CifsClient client;
+    private final BPBuildInfo buildInfo;
+    private final CifsHelper helper;
+    private final String baseUrl;
+    private final int bufferSize;
+    private final CifsFileRetryPolicy retryPolicy;
+    private final CifsResumeState resumeState;
+    private int parallelism;
+    /** the streams the client may have open at once, however they are shared between files and ranges of files */
+    private Semaphore streams;
+    /** writes the ranges of every large file, created when the first one is sent */
+    private ExecutorService rangeWorkers;
+    private long largeFileThreshold = CifsClient.DEFAULT_LARGE_FILE_THRESHOLD;
+    /** shared by everything that writes to this host, null when no host configuration for it sets a limit */
+    private CifsBandwidthLimiter limiter;
+    private final AtomicLong lastThroughputReport = new AtomicLong();
+    /** shared by everything that publishes to this host */
+    private CifsHostLimits hostLimits;
+    private String who;
+    private int priority;
+    private final AtomicLong streamWait = new AtomicLong();
+
+    CifsUploader(final CifsClient client, final BPBuildInfo buildInfo, final CifsHelper helper, final String baseUrl,
+                 final int bufferSize, final int parallelism) {
+        this.client = client;
+        this.buildInfo = buildInfo;
+        this.helper = helper;
+        this.baseUrl = baseUrl;
+        this.bufferSize = bufferSize;
+        this.parallelism = parallelism;
+        this.streams = new Semaphore(parallelism);
+        this.retryPolicy = CifsFileRetryPolicy.get(buildInfo);
+        this.resumeState = CifsResumeState.get(buildInfo);
+    }
+
+    void setLargeFileThreshold(final long largeFileThreshold) { this.largeFileThreshold = largeFileThreshold; }
+
+    void setHostLimits(final CifsHostLimits hostLimits, final String who, final int priority) {
+        this.hostLimits = hostLimits;
+        this.who = who;
+        this.priority = priority;
+    }
+
+    CifsBandwidthLimiter getLimiter() { return limiter; }
+
+    void setLimiter(final CifsBandwidthLimiter limiter) {
+        this.limiter = limiter;
+        lastThroughputReport.set(System.currentTimeMillis());
+    }
+
+    /**
+     * Write one file at a time through a single stream, as a client does when it is fanned out to.
+     */
+    void singleStream() {
+        parallelism = 1;
+        streams = new Semaphore(1);
+    }
+
+    /**
+     * @return how long writes waited for a stream to the host since this was last called, in milliseconds
+     */
+    long takeStreamWait() {
+        return streamWait.getAndSet(0);
+    }
+
+    synchronized void shutdown() {
+        if (rangeWorkers != null) rangeWorkers.shutdownNow();
+    }
+
+    /**
+     * @param content the content of the file, or null to read it from the file
+     */
+    void uploadWithRetry(final FilePath filePath, final InputStream content, final String url)
+            throws IOException, InterruptedException {
+        final long start = System.currentTimeMillis();
+        final long started = System.nanoTime();
+        for (int retry = 1; ; retry++) {
+            try {
+                // the caller's stream may be part read, so retries read the file again
+                final long written = upload(filePath, retry == 1 ? content : null, url);
+                client.transferred(url, written, System.nanoTime() - started);
+                return;
+            } catch (final IOException | BapPublisherException e) {
+                final long delay = CifsFileRetryPolicy.isTransient(e) ? retryPolicy.getDelay(retry, System.currentTimeMillis() - start) : -1;
+                if (delay < 0) {
+                    client.getMetrics().time(CifsMetrics.Operation.TRANSFER_FILE, System.nanoTime() - started, true);
+                    throw e;
+                }
+                resumeState.recordRetry();
+                buildInfo.println(Messages.console_retry_file(helper.hideUserInfo(url), e.getLocalizedMessage(), retry, delay));
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    /**
+     * @return the length of the file
+     */
+    private long upload(final FilePath filePath, final InputStream content, final String url) throws IOException, InterruptedException {
+        final CifsResumeState.Progress progress = client.progress();
+        final String target = client.target(url);
+        if (parallelism > 1) {
+            final long length = filePath.length();
+            if (length >= largeFileThreshold) {
+                progress.start(target);
+                uploadInRanges(filePath, url, length);
+                progress.complete(target, filePath.getRemote(), length);
+                return length;
+            }
+        }
+        if (progress.wasStarted(target) && resume(filePath, url)) return filePath.length();
+        progress.start(target);
+        final long written;
+        if (content == null) {
+            try (InputStream in = filePath.read()) {
+                written = write(in, url);
+            }
+        } else {
+            written = write(content, url);
+        }
+        progress.complete(target, filePath.getRemote(), written);
+        return written;
+    }
+
+    private long write(final InputStream content, final String url) throws IOException {
+        final Stream stream = acquireStream();
+        try (OutputStream out = throttle(client.createFile(url).getOutputStream())) {
+            return IOUtils.copyLarge(content, out, new byte[bufferSize]);
+        } finally {
+            stream.release();
+        }
+    }
+
+    /**
+     * Wait for a place among the streams of the client, then among the streams that every build may have open to the host.
+     */
+    private Stream acquireStream() throws InterruptedIOException {
+        final Semaphore own = streams;
+        try {
+            own.acquire();
+            boolean acquired = false;
+            try {
+                final CifsHostLimits.Permit permit = hostLimits == null ? CifsHostLimits.Permit.NONE
+                                                                        : hostLimits.acquireStream(who, priority);
+                streamWait.addAndGet(permit.getWaited());
+                acquired = true;
+                return new Stream(own, permit);
+            } finally {
+                if (!acquired) own.release();
+            }
+        } catch (final InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw (InterruptedIOException) new InterruptedIOException(ie.getLocalizedMessage()).initCause(ie);
+        }
+    }
+
+    /** A stream that is open, counted against the client and the host. */
+    private static final class Stream {
+        private final Semaphore own;
+        private final CifsHostLimits.Permit permit;
+
+        Stream(final Semaphore own, final CifsHostLimits.Permit permit) {
+            this.own = own;
+            this.permit = permit;
+        }
+
+        void release() {
+            permit.release();
+            own.release();
+        }
+    }
+
+    /**
+     * Carry on writing a file that an earlier attempt only partly wrote, if the end of what is on the share matches the
+     * local file.
+     * @return false if the file needs to be written from the start
+     */
+    private boolean resume(final FilePath filePath, final String url) throws IOException, InterruptedException {
+        final long length = filePath.length();
+        final SmbFile file = client.createFile(url);
+        if (length < MIN_RESUME_LENGTH || !helper.exists(file, url)) return false;
+        final long offset = file.length();
+        if (offset <= 0 || offset > length) return false;
+        final byte[] remoteTail = new byte[(int) Math.min(offset, RESUME_VERIFY_LENGTH)];
+        final byte[] localTail = new byte[remoteTail.length];
+        try (SmbRandomAccess remote = client.openRandomAccess(file); InputStream local = filePath.readFromOffset(offset - localTail.length)) {
+            remote.seek(offset - remoteTail.length);
+            remote.readFully(remoteTail);
+            IOUtils.readFully(local, localTail);
+            if (!Arrays.equals(remoteTail, localTail)) {
+                buildInfo.println(Messages.console_resume_mismatch(helper.hideUserInfo(url)));
+                return false;
+            }
+            buildInfo.println(Messages.console_resume(helper.hideUserInfo(url), offset));
+            remote.seek(offset);
+            final byte[] buffer = new byte[Math.max(bufferSize, MIN_RANGE_BUFFER_SIZE)];
+            final Stream stream = acquireStream();
+            try {
+                int read;
+                while ((read = local.read(buffer)) != -1) {
+                    throttle(read);
+                    remote.write(buffer, 0, read);
+                }
+            } finally {
+                stream.release();
+            }
+        }
+        client.progress().complete(client.target(url), filePath.getRemote(), length);
+        return true;
+    }
+
+    /**
+     * Preallocate the remote file, then have each worker write its own contiguous range through its own file handle, so
+     * that several writes are outstanding at once instead of the one that a single output stream allows.
+     * <p>
+     * The ranges of every large file are written by the same workers, and count against the same streams as whole
+     * files, so that large files sent from several upload workers at once do not open more streams than the client may.
+     */
+    private void uploadInRanges(final FilePath filePath, final String url, final long length) throws IOException, InterruptedException {
+        final CifsResumeState.Progress progress = client.progress();
+        final String target = client.target(url);
+        final long rangeSize = (length + parallelism - 1) / parallelism;
+        if (buildInfo.isVerbose()) buildInfo.println(Messages.console_copy_ranges(helper.hideUserInfo(url), parallelism, rangeSize));
+        final Stream preallocate = acquireStream();
+        try (SmbRandomAccess file = client.openRandomAccess(client.createFile(url))) {
+            file.setLength(length);
+        } finally {
+            preallocate.release();
+        }
+        final List<Future<?>> ranges = new ArrayList<>();
+        try {
+            for (long start = 0; start < length; start += rangeSize) {
+                final long from = start;
+                final long to = Math.min(length, start + rangeSize);
+                if (progress.isRangeCompleted(target, from)) continue;
+                ranges.add(rangeWorkers().submit(() -> {
+                    writeRange(filePath, url, from, to);
+                    progress.completeRange(target, from);
+                    return null;
+                }));
+            }
+            Throwable failed = null;
+            for (final Future<?> range : ranges) {
+                try {
+                    range.get();
+                } catch (final ExecutionException ee) {
+                    if (failed == null) failed = ee.getCause();
+                }
+            }
+            if (failed != null) throw new IOException(Messages.exception_upload_range(helper.hideUserInfo(url), failed.getLocalizedMessage()), failed);
+        } finally {
+            // stop what is left of this file if waiting was interrupted
+            for (final Future<?> range : ranges) range.cancel(true);
+        }
+    }
+
+    private synchronized ExecutorService rangeWorkers() {
+        if (rangeWorkers == null) rangeWorkers = Executors.newFixedThreadPool(parallelism,
+                new NamingThreadFactory(new DaemonThreadFactory(), "CIFS ranged upload to " + helper.hideUserInfo(baseUrl)));
+        return rangeWorkers;
+    }
+
+    private void writeRange(final FilePath filePath, final String url, final long from, final long to)
+            throws IOException, InterruptedException {
+        final byte[] buffer = new byte[Math.max(bufferSize, MIN_RANGE_BUFFER_SIZE)];
+        final Stream stream = acquireStream();
+        try (InputStream in = filePath.readFromOffset(from); SmbRandomAccess file = client.openRandomAccess(client.createFile(url))) {
+            file.seek(from);
+            long remaining = to - from;
+            while (remaining > 0) {
+                final int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) throw new EOFException(filePath.getRemote());
+                throttle(read);
+                file.write(buffer, 0, read);
+                remaining -= read;
+            }
+        } finally {
+            stream.release();
+        }
+    }
+
+    private OutputStream throttle(final OutputStream out) {
+        if (limiter == null) return out;
+        return limiter.throttle(new FilterOutputStream(out) {
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+                reportThroughput();
+            }
+        });
+    }
+
+    private void throttle(final int bytes) throws InterruptedIOException {
+        if (limiter == null) return;
+        limiter.acquire(bytes);
+        reportThroughput();
+    }
+
+    /**
+     * Every so often while the client is writing, show how fast the host is being written to by every build.
+     */
+    private void reportThroughput() {
+        final long now = System.currentTimeMillis();
+        final long last = lastThroughputReport.get();
+        if (now - last < THROUGHPUT_REPORT_INTERVAL || !lastThroughputReport.compareAndSet(last, now)) return;
+        buildInfo.println(Messages.console_throttle_throughput(helper.hideUserInfo(baseUrl), limiter.getThroughput(), limiter.getRate()));
+    }
+
+}
@@ -144,6 +144,21 @@ public class CifsPublisherPluginDescriptor extends BuildStepDescriptor<Publisher
     public FormValidation doCheckBufferSize(@QueryParameter final String value) {
         return FormValidation.validatePositiveInteger(value);
     }
+    public FormValidation doCheckParallelism(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+    public FormValidation doCheckMaxBytesPerSecond(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+    public FormValidation doCheckMaxConcurrentPublishes(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+    public FormValidation doCheckMaxConcurrentStreams(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+    public FormValidation doCheckMaxConcurrentPublishers(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
     public FormValidation doCheckSourceFiles(@QueryParameter final String value) {
         return FormValidation.validateRequired(value);
     }
@@ -156,6 +171,18 @@ public class CifsPublisherPluginDescriptor extends BuildStepDescriptor<Publisher
     public FormValidation doCheckRetryDelay(@QueryParameter final String value) {
         return FormValidation.validatePositiveInteger(value);
     }
+    public FormValidation doCheckFileRetries(@QueryParameter final String value) {
+        return FormValidation.validateNonNegativeInteger(value);
+    }
+    public FormValidation doCheckFileRetryDelay(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+    public FormValidation doCheckFileRetryMaxDelay(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
+    public FormValidation doCheckFileRetryMaxElapsed(@QueryParameter final String value) {
+        return FormValidation.validatePositiveInteger(value);
+    }
     public String getDefaultMasterNodeName() {
         return BPInstanceConfig.DEFAULT_MASTER_NODE_NAME;
     }
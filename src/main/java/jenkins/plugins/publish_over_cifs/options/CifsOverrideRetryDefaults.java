@@ -31,13 +31,19 @@ import hudson.model.Descriptor;
 import hudson.util.FormValidation;
 import jenkins.model.Jenkins;
 import jenkins.plugins.publish_over.options.RetryOptions;
+import jenkins.plugins.publish_over_cifs.CifsFileRetryPolicy;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 
-public class CifsOverrideRetryDefaults implements RetryOptions, Describable<CifsOverrideRetryDefaults> {
+public class CifsOverrideRetryDefaults implements RetryOptions, CifsFileRetryOptions, Describable<CifsOverrideRetryDefaults> {
 
     private final int retries;
     private final long retryDelay;
+    private int fileRetries = CifsFileRetryPolicy.DEFAULT_FILE_RETRIES;
+    private long fileRetryDelay = CifsFileRetryPolicy.DEFAULT_DELAY;
+    private long fileRetryMaxDelay = CifsFileRetryPolicy.DEFAULT_MAX_DELAY;
+    private long fileRetryMaxElapsed = CifsFileRetryPolicy.DEFAULT_MAX_ELAPSED;
 
     @DataBoundConstructor
     public CifsOverrideRetryDefaults(final int retries, final long retryDelay) {
@@ -53,6 +59,42 @@ public class CifsOverrideRetryDefaults implements RetryOptions, Describable<Cifs
         return retryDelay;
     }
 
+    public int getFileRetries() {
+        return fileRetries;
+    }
+
+    @DataBoundSetter
+    public void setFileRetries(final int fileRetries) {
+        this.fileRetries = fileRetries;
+    }
+
+    public long getFileRetryDelay() {
+        return fileRetryDelay;
+    }
+
+    @DataBoundSetter
+    public void setFileRetryDelay(final long fileRetryDelay) {
+        this.fileRetryDelay = fileRetryDelay;
+    }
+
+    public long getFileRetryMaxDelay() {
+        return fileRetryMaxDelay;
+    }
+
+    @DataBoundSetter
+    public void setFileRetryMaxDelay(final long fileRetryMaxDelay) {
+        this.fileRetryMaxDelay = fileRetryMaxDelay;
+    }
+
+    public long getFileRetryMaxElapsed() {
+        return fileRetryMaxElapsed;
+    }
+
+    @DataBoundSetter
+    public void setFileRetryMaxElapsed(final long fileRetryMaxElapsed) {
+        this.fileRetryMaxElapsed = fileRetryMaxElapsed;
+    }
+
     public CifsOverrideRetryDefaultsDescriptor getDescriptor() {
         return Jenkins.get().getDescriptorByType(CifsOverrideRetryDefaultsDescriptor.class);
     }
@@ -74,6 +116,22 @@ public class CifsOverrideRetryDefaults implements RetryOptions, Describable<Cifs
             return FormValidation.validatePositiveInteger(value);
         }
 
+        public FormValidation doCheckFileRetries(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckFileRetryDelay(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckFileRetryMaxDelay(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public FormValidation doCheckFileRetryMaxElapsed(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
         public jenkins.plugins.publish_over.view_defaults.Retry.Messages getCommonFieldNames() {
             return new jenkins.plugins.publish_over.view_defaults.Retry.Messages();
         }
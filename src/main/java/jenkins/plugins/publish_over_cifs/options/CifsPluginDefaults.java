@@ -34,11 +34,13 @@ import jenkins.plugins.publish_over.options.PublisherOptions;
 import jenkins.plugins.publish_over.options.RetryOptions;
 import jenkins.plugins.publish_over.options.TransferOptions;
 import jenkins.plugins.publish_over.view_defaults.manage_jenkins.Messages;
+import jenkins.plugins.publish_over_cifs.CifsFileRetryPolicy;
 import org.kohsuke.stapler.DataBoundConstructor;
 
 public final class CifsPluginDefaults extends CifsDefaults {
 
     public static final GlobalDefaults GLOBAL_DEFAULTS = new GlobalDefaults();
+    public static final RetryDefaults RETRY_DEFAULTS = new RetryDefaults();
 
     @DataBoundConstructor
     public CifsPluginDefaults() { }
@@ -60,13 +62,41 @@ public final class CifsPluginDefaults extends CifsDefaults {
     }
 
     public RetryOptions getRetry() {
-        return GLOBAL_DEFAULTS;
+        return RETRY_DEFAULTS;
     }
 
     public TransferOptions getTransfer() {
         return GLOBAL_DEFAULTS;
     }
 
+    public static final class RetryDefaults implements RetryOptions, CifsFileRetryOptions {
+
+        public int getRetries() {
+            return GLOBAL_DEFAULTS.getRetries();
+        }
+
+        public long getRetryDelay() {
+            return GLOBAL_DEFAULTS.getRetryDelay();
+        }
+
+        public int getFileRetries() {
+            return CifsFileRetryPolicy.DEFAULT_FILE_RETRIES;
+        }
+
+        public long getFileRetryDelay() {
+            return CifsFileRetryPolicy.DEFAULT_DELAY;
+        }
+
+        public long getFileRetryMaxDelay() {
+            return CifsFileRetryPolicy.DEFAULT_MAX_DELAY;
+        }
+
+        public long getFileRetryMaxElapsed() {
+            return CifsFileRetryPolicy.DEFAULT_MAX_ELAPSED;
+        }
+
+    }
+
     @Extension
     public static final class CifsPluginDefaultsDescriptor extends CifsDefaultsDescriptor {
 
@@ -10,6 +10,7 @@ def helpUrl = "/plugin/publish-over-cifs/help/global/"
 def defaultPort = jenkins.plugins.publish_over_cifs.CifsHostConfiguration.getDefaultPort()
 def defaultTimeout = jenkins.plugins.publish_over_cifs.CifsHostConfiguration.getDefaultTimeout()
 def defaultBufferSize = jenkins.plugins.publish_over_cifs.CifsHostConfiguration.getDefaultBufferSize()
+def defaultParallelism = jenkins.plugins.publish_over_cifs.CifsHostConfiguration.getDefaultParallelism()
 
 f.section(description: _("hostconfig.section.description"), title: _("hostconfig.section.title")) {
   f.entry(title: _("hostconfig.entry")) {
@@ -40,6 +41,18 @@ f.section(description: _("hostconfig.section.description"), title: _("hostconfig
           f.entry(help: "${helpUrl}bufferSize.html", title: _("hostconfig.field.bufferSize")) {
             f.textbox(default: defaultBufferSize, name: "_.bufferSize", checkUrl: "${descriptor.getCheckUrl('bufferSize')}", checkDependsOn="", value: instance?.bufferSize)
           }
+          f.entry(help: "${helpUrl}parallelism.html", title: _("hostconfig.field.parallelism")) {
+            f.textbox(default: defaultParallelism, name: "_.parallelism", checkUrl: "${descriptor.getCheckUrl('parallelism')}", checkDependsOn="", value: instance?.parallelism)
+          }
+          f.entry(help: "${helpUrl}maxBytesPerSecond.html", title: _("hostconfig.field.maxBytesPerSecond")) {
+            f.textbox(default: 0, name: "_.maxBytesPerSecond", checkUrl: "${descriptor.getCheckUrl('maxBytesPerSecond')}", checkDependsOn="", value: instance?.maxBytesPerSecond)
+          }
+          f.entry(help: "${helpUrl}maxConcurrentPublishes.html", title: _("hostconfig.field.maxConcurrentPublishes")) {
+            f.textbox(default: 0, name: "_.maxConcurrentPublishes", checkUrl: "${descriptor.getCheckUrl('maxConcurrentPublishes')}", checkDependsOn="", value: instance?.maxConcurrentPublishes)
+          }
+          f.entry(help: "${helpUrl}maxConcurrentStreams.html", title: _("hostconfig.field.maxConcurrentStreams")) {
+            f.textbox(default: 0, name: "_.maxConcurrentStreams", checkUrl: "${descriptor.getCheckUrl('maxConcurrentStreams')}", checkDependsOn="", value: instance?.maxConcurrentStreams)
+          }
           f.entry(help: "${helpUrl}smbVersion.html", title: _("hostconfig.field.smbVersion")) {
             select(name: "_.smbVersion", class: "setting-input") {
               jenkins.plugins.publish_over_cifs.CifsHostConfiguration.SmbVersions.values().each { ver ->
@@ -52,6 +65,29 @@ f.section(description: _("hostconfig.section.description"), title: _("hostconfig
             }
           }
         }
+        if (instance != null && (instance.maxConcurrentPublishes > 0 || instance.maxConcurrentStreams > 0)) {
+          f.entry(help: "${helpUrl}queue.html", title: _("hostconfig.queue")) {
+            div(_("hostconfig.queue.active", instance.activePublishes, instance.activeStreams))
+            table(class: "pane") {
+              tr {
+                th(_("hostconfig.queue.build"))
+                th(_("hostconfig.queue.for"))
+                th(_("hostconfig.queue.priority"))
+                th(_("hostconfig.queue.waited"))
+              }
+              [(_("hostconfig.queue.publish")): instance.waitingPublishes, (_("hostconfig.queue.stream")): instance.waitingStreams].each { what, waiting ->
+                waiting.each { w ->
+                  tr {
+                    td(w.who)
+                    td(what)
+                    td("${w.priority} (${w.effectivePriority})")
+                    td(w.waited)
+                  }
+                }
+              }
+            }
+          }
+        }
         f.validateButton(with: "name,hostname,username,password,remoteRootDir,port,timeout,bufferSize,poc-np.winsServer,smbVersion", method: "testConnection", progress: m.test_progress(), title: m.test_title())
         f.entry(title: "") {
           div(align: "right") {
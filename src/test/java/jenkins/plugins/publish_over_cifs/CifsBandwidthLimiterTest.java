@@ -0,0 +1,84 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CifsBandwidthLimiterTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void aBurstIsNotDelayed() {
+        final CifsBandwidthLimiter limiter = new CifsBandwidthLimiter(1000, 2000, now::get);
+        assertEquals(0, limiter.reserve(1500));
+        assertEquals(0, limiter.reserve(500));
+    }
+
+    @Test
+    void writesBeyondTheBurstWaitForTheirTokens() {
+        final CifsBandwidthLimiter limiter = new CifsBandwidthLimiter(1000, 1000, now::get);
+        assertEquals(0, limiter.reserve(1000));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(500), limiter.reserve(500));
+        // the next writer queues behind the debt of the one before
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1000), limiter.reserve(500));
+    }
+
+    @Test
+    void tokensRefillAtTheRateUpToTheBurst() {
+        final CifsBandwidthLimiter limiter = new CifsBandwidthLimiter(1000, 1000, now::get);
+        limiter.reserve(1000);
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(300));
+        assertEquals(0, limiter.reserve(300));
+        now.addAndGet(TimeUnit.SECONDS.toNanos(60));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), limiter.reserve(1100));
+    }
+
+    @Test
+    void changingTheRateAppliesToTheSameHost() {
+        final CifsBandwidthLimiter limiter = CifsBandwidthLimiter.forHost("changingTheRate:445", 1000);
+        assertSame(limiter, CifsBandwidthLimiter.forHost("changingTheRate:445", 2000));
+        assertEquals(2000, limiter.getRate());
+    }
+
+    @Test
+    void throughputIsMeasuredOverTheWindow() throws Exception {
+        final CifsBandwidthLimiter limiter = new CifsBandwidthLimiter(1_000_000, 1000, now::get);
+        final OutputStream out = limiter.throttle(new ByteArrayOutputStream());
+        out.write(new byte[10_000]);
+        now.addAndGet(TimeUnit.SECONDS.toNanos(10));
+        out.write(new byte[1]);
+        assertEquals(1000, limiter.getThroughput());
+    }
+
+}
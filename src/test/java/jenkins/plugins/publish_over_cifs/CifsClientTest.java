@@ -25,27 +25,52 @@
 package jenkins.plugins.publish_over_cifs;
 
 import hudson.FilePath;
+import jcifs.SmbRandomAccess;
 import jcifs.context.SingletonContext;
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbException;
 import jcifs.smb.SmbFile;
 import jenkins.plugins.publish_over.BPBuildInfo;
 import jenkins.plugins.publish_over.BapPublisherException;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.mockito.junit.jupiter.MockitoExtension;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.RETURNS_DEFAULTS;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -114,6 +139,46 @@ class CifsClientTest {
         verify(mockSmbFile).canRead();
     }
 
+    @Test
+    void changeDirectoryChecksEachDirectoryOnce() throws Exception {
+        final CifsClient cifsClient = new CifsClientWithMockFiles(TEST_ROOT_URL + NEW_DIR + "/");
+        when(mockSmbFile.exists()).thenReturn(true);
+        when(mockSmbFile.canRead()).thenReturn(true);
+        assertTrue(cifsClient.changeDirectory(NEW_DIR));
+        cifsClient.changeToInitialDirectory();
+        assertTrue(cifsClient.changeDirectory(NEW_DIR));
+        assertEquals(TEST_ROOT_URL + NEW_DIR + "/", cifsClient.getContext());
+        verify(mockSmbFile).exists();
+        verify(mockSmbFile).canRead();
+    }
+
+    @Test
+    void makeDirectoryTrustsChangeDirectoryAndCachesTheResult() throws Exception {
+        final String absUrl = TEST_ROOT_URL + NEW_DIR + "/";
+        final CifsClient cifsClient = new CifsClientWithMockFiles(absUrl, absUrl);
+        when(mockSmbFile.exists()).thenReturn(false);
+        assertFalse(cifsClient.changeDirectory(NEW_DIR));
+        assertTrue(cifsClient.makeDirectory(NEW_DIR));
+        assertTrue(cifsClient.changeDirectory(NEW_DIR));
+        assertEquals(absUrl, cifsClient.getContext());
+        verify(mockSmbFile).exists();
+        verify(mockSmbFile).mkdirs();
+    }
+
+    @Test
+    void deleteTreeForgetsCachedDirectories() throws Exception {
+        final String absUrl = TEST_ROOT_URL + NEW_DIR + "/";
+        final CifsClient cifsClient = new CifsClientWithMockFiles(absUrl, TEST_ROOT_URL, absUrl);
+        when(mockSmbFile.exists()).thenReturn(true);
+        when(mockSmbFile.canRead()).thenReturn(true);
+        when(mockSmbFile.listFiles()).thenReturn(new SmbFile[0]);
+        assertTrue(cifsClient.changeDirectory(NEW_DIR));
+        cifsClient.changeToInitialDirectory();
+        cifsClient.deleteTree();
+        assertTrue(cifsClient.changeDirectory(NEW_DIR));
+        verify(mockSmbFile, times(2)).exists();
+    }
+
     @Test
     void testMakeDirectory() throws Exception {
         final String absUrl = TEST_ROOT_URL + NEW_DIR + "/";
@@ -159,6 +224,126 @@ class CifsClientTest {
         verify(mockSmbFile).getOutputStream();
     }
 
+    @Test
+    void parallelDeleteTreeDeletesWhatItCanAndReportsTheRest() throws Exception {
+        final SmbFile good = mock(SmbFile.class);
+        final SmbFile bad = mock(SmbFile.class);
+        doThrow(new SmbException("locked")).when(bad).delete();
+        when(bad.getCanonicalPath()).thenReturn(TEST_ROOT_URL + "dir/bad");
+        final SmbFile dir = mock(SmbFile.class);
+        when(dir.isDirectory()).thenReturn(true);
+        when(dir.listFiles()).thenReturn(new SmbFile[] {good, bad});
+        final SmbFile other = mock(SmbFile.class);
+        when(mockSmbFile.listFiles()).thenReturn(new SmbFile[] {dir, other});
+        final CifsClient client = new ParallelClient(4, url -> mockSmbFile);
+
+        final BapPublisherException bpe = assertThrows(BapPublisherException.class, client::deleteTree);
+        assertTrue(bpe.getMessage().contains(TEST_ROOT_URL + "dir/bad"));
+        verify(good).delete();
+        verify(other).delete();
+        verify(dir, never()).delete();
+    }
+
+    @Test
+    void cleanInBackgroundMovesTheDirectoryAsideAndReapsTombstones() throws Exception {
+        final String out = TEST_ROOT_URL + "out/";
+        final Map<String, SmbFile> files = new ConcurrentHashMap<>();
+        final SmbFile leftover = mock(SmbFile.class);
+        when(leftover.getCanonicalPath()).thenReturn(TEST_ROOT_URL + ".cifs-deleted-out-1/");
+        final CifsClient client = new ParallelClient(1, url -> files.computeIfAbsent(url, u -> {
+            final SmbFile file = mock(SmbFile.class, RETURNS_DEFAULTS);
+            try {
+                if (u.equals(out)) {
+                    when(file.exists()).thenReturn(true);
+                    when(file.canRead()).thenReturn(true);
+                } else if (u.equals(TEST_ROOT_URL)) {
+                    when(file.listFiles(".cifs-deleted-out-*")).thenReturn(new SmbFile[] {leftover});
+                } else {
+                    when(file.getCanonicalPath()).thenReturn(u);
+                }
+            } catch (final SmbException e) {
+                throw new IllegalStateException(e);
+            }
+            return file;
+        }));
+        final CifsTransfer transfer = new CifsTransfer("**", "", "out", "", false, false, true, false, false, ",");
+        transfer.setCleanRemoteInBackground(true);
+        client.beginTransfers(transfer);
+        assertTrue(client.changeDirectory("out"));
+
+        client.deleteTree();
+
+        final String tombstoneUrl = files.keySet().stream().filter(url -> url.startsWith(TEST_ROOT_URL + ".cifs-deleted-out-"))
+                .findFirst().orElseThrow(AssertionError::new);
+        verify(files.get(out)).renameTo(files.get(tombstoneUrl));
+        verify(files.get(out)).mkdir();
+        verify(files.get(tombstoneUrl), timeout(5000)).delete();
+        verify(leftover, timeout(5000)).delete();
+    }
+
+    @Test
+    void stagedPublishSwapsTheStagingDirectoryIntoPlace(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "file.txt");
+        Files.write(file.toPath(), "new".getBytes(StandardCharsets.UTF_8));
+        final String out = TEST_ROOT_URL + "out/";
+        final String staging = TEST_ROOT_URL + CifsClient.STAGING_PREFIX + "out-" + buildInfo.getBuildTime().getTimeInMillis() + "/";
+        final SmbFile target = mock(SmbFile.class);
+        final SmbFile stagingDir = mock(SmbFile.class);
+        when(target.exists()).thenReturn(true);
+        when(stagingDir.exists()).thenReturn(false, true);
+        when(stagingDir.canRead()).thenReturn(true);
+        when(mockSmbFile.listFiles(CifsClient.STAGING_PREFIX + "out-*")).thenReturn(new SmbFile[0]);
+        final Map<String, SmbFile> tombstones = new ConcurrentHashMap<>();
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(1, url -> {
+            if (url.equals(TEST_ROOT_URL)) return mockSmbFile;
+            if (url.equals(out)) return target;
+            if (url.equals(staging)) return stagingDir;
+            if (url.startsWith(TEST_ROOT_URL + CifsTombstoneReaper.TOMBSTONE_PREFIX)) return tombstones.computeIfAbsent(url, u -> {
+                final SmbFile tombstone = mock(SmbFile.class);
+                when(tombstone.getCanonicalPath()).thenReturn(u);
+                return tombstone;
+            });
+            return share.file(url);
+        });
+        final CifsTransfer transfer = new CifsTransfer("**", "", "out", "", false, false, true, false, false, ",");
+        transfer.setStaged(true);
+
+        client.beginTransfers(transfer);
+        assertTrue(client.changeDirectory("out"));
+        client.transferFile(transfer, new FilePath(file), new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8)));
+        client.endTransfers(transfer);
+
+        assertEquals("new", new String(share.get(staging + "file.txt"), StandardCharsets.UTF_8));
+        verify(stagingDir).mkdirs();
+        assertEquals(1, tombstones.size());
+        final SmbFile tombstone = tombstones.values().iterator().next();
+        verify(target).renameTo(tombstone);
+        verify(stagingDir).renameTo(target);
+        verify(tombstone, timeout(5000)).delete();
+    }
+
+    @Test
+    void overlappingStagingIsLeftAloneUntilAbandoned() throws Exception {
+        final SmbFile running = mock(SmbFile.class);
+        when(running.getName()).thenReturn(CifsClient.STAGING_PREFIX + "out-1/");
+        when(running.lastModified()).thenReturn(System.currentTimeMillis() - 60_000);
+        final SmbFile abandoned = mock(SmbFile.class);
+        when(abandoned.getName()).thenReturn(CifsClient.STAGING_PREFIX + "out-2/");
+        when(abandoned.getCanonicalPath()).thenReturn(TEST_ROOT_URL + CifsClient.STAGING_PREFIX + "out-2/");
+        when(abandoned.lastModified()).thenReturn(System.currentTimeMillis() - CifsClient.DEFAULT_STAGING_ABANDONED_MILLIS - 60_000);
+        when(mockSmbFile.listFiles(CifsClient.STAGING_PREFIX + "out-*")).thenReturn(new SmbFile[] {running, abandoned});
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(1, url -> url.equals(TEST_ROOT_URL) ? mockSmbFile : share.file(url));
+        final CifsTransfer transfer = new CifsTransfer("**", "", "out", "", false, false, true, false, false, ",");
+        transfer.setStaged(true);
+
+        client.beginTransfers(transfer);
+
+        verify(abandoned, timeout(5000)).delete();
+        verify(running, never()).delete();
+    }
+
     @Test
     void testBeginTransfersFailIfNoSourceFiles() {
         BapPublisherException bpe = assertThrows(BapPublisherException.class,
@@ -180,6 +365,685 @@ class CifsClientTest {
         verify(mockSmbFile).listFiles();
     }
 
+    @Test
+    void parallelTransfersUploadEveryFile(@TempDir final File dir) throws Exception {
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(3, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        client.beginTransfers(transfer);
+        for (int i = 0; i < 10; i++) {
+            final File file = new File(dir, "file" + i);
+            Files.write(file.toPath(), ("contents " + i).getBytes(StandardCharsets.UTF_8));
+            client.transferFile(transfer, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+        }
+        client.endTransfers(transfer);
+        assertEquals(10, share.size());
+        assertEquals("contents 7", new String(share.get(TEST_ROOT_URL + "file7"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void parallelTransferFailuresAreReportedAtTheEnd(@TempDir final File dir) throws Exception {
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(2, url -> url.endsWith("bad") ? share.brokenFile() : share.file(url));
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        client.beginTransfers(transfer);
+        for (final String name : new String[] {"good", "bad"}) {
+            final File file = new File(dir, name);
+            Files.write(file.toPath(), name.getBytes(StandardCharsets.UTF_8));
+            client.transferFile(transfer, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+        }
+        final BapPublisherException bpe = assertThrows(BapPublisherException.class, () -> client.endTransfers(transfer));
+        assertTrue(bpe.getMessage().contains(TEST_ROOT_URL + "bad"));
+    }
+
+    @Test
+    void directoryTreeIsCreatedUpFrontALevelAtATime(@TempDir final File dir) throws Exception {
+        for (final String path : new String[] {"a/b/c/one.txt", "a/b/two.txt", "a/d/three.txt", "four.txt"}) {
+            final File file = new File(dir, path);
+            assertTrue(file.getParentFile().mkdirs() || file.getParentFile().isDirectory());
+            Files.write(file.toPath(), path.getBytes(StandardCharsets.UTF_8));
+        }
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(3, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "out", "", false, false, false, false, false, ",");
+        client.beginTransfers(transfer);
+
+        final String out = TEST_ROOT_URL + "out/";
+        final List<String> created = share.directories;
+        assertEquals(5, created.size());
+        assertEquals(Arrays.asList(out, out + "a/"), created.subList(0, 2));
+        assertEquals(new HashSet<>(Arrays.asList(out + "a/b/", out + "a/d/")), new HashSet<>(created.subList(2, 4)));
+        assertEquals(out + "a/b/c/", created.get(4));
+        assertTrue(client.changeDirectory("out/a/b/c"));
+        client.endTransfers(transfer);
+    }
+
+    @Test
+    void largeFilesWrittenInRangesMatchSingleStream(@TempDir final File dir) throws Exception {
+        final byte[] contents = new byte[300_001];
+        new Random(42).nextBytes(contents);
+        final File file = new File(dir, "big.bin");
+        Files.write(file.toPath(), contents);
+
+        final FakeShare singleShare = new FakeShare();
+        try (InputStream in = new FileInputStream(file)) {
+            new ParallelClient(1, singleShare::file).transferFile(null, new FilePath(file), in);
+        }
+        final FakeShare rangedShare = new FakeShare();
+        final ParallelClient ranged = new ParallelClient(4, rangedShare::file);
+        ranged.setLargeFileThreshold(1024);
+        ranged.transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+
+        assertEquals(0, singleShare.randomAccessHandles.get());
+        assertEquals(5, rangedShare.randomAccessHandles.get());
+        assertArrayEquals(contents, singleShare.get(TEST_ROOT_URL + "big.bin"));
+        assertArrayEquals(singleShare.get(TEST_ROOT_URL + "big.bin"), rangedShare.get(TEST_ROOT_URL + "big.bin"));
+    }
+
+    @Test
+    void largeFilesSentTogetherShareTheStreamsOfTheClient(@TempDir final File dir) throws Exception {
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final FakeShare share = new FakeShare();
+        final ParallelClient client = new ParallelClient(2, share::file);
+        client.setLargeFileThreshold(1024);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        client.beginTransfers(transfer);
+        final byte[][] contents = new byte[4][];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = new byte[100_000 + i];
+            new Random(i).nextBytes(contents[i]);
+            final File file = new File(dir, "big" + i + ".bin");
+            Files.write(file.toPath(), contents[i]);
+            client.transferFile(transfer, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+        }
+        client.endTransfers(transfer);
+
+        // each upload worker sends a large file in ranges, but no more handles are open than the client has streams
+        assertTrue(share.mostOpenHandles.get() <= 2, "most open handles " + share.mostOpenHandles.get());
+        for (int i = 0; i < contents.length; i++) assertArrayEquals(contents[i], share.get(TEST_ROOT_URL + "big" + i + ".bin"));
+    }
+
+    @Test
+    void queuedUploadsCloseTheGivenStreamAndReadTheFile(@TempDir final File dir) throws Exception {
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final File file = new File(dir, "file.txt");
+        Files.write(file.toPath(), "file".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        final ParallelClient client = new ParallelClient(2, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        client.beginTransfers(transfer);
+        final AtomicBoolean closed = new AtomicBoolean();
+        final InputStream given = new ByteArrayInputStream(new byte[0]) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+        client.transferFile(transfer, new FilePath(file), given);
+        // not held open while the file waits for a worker
+        assertTrue(closed.get());
+        client.endTransfers(transfer);
+
+        assertEquals("file", new String(share.get(TEST_ROOT_URL + "file.txt"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void skipUnchangedOnlyCopiesFilesThatDiffer(@TempDir final File dir) throws Exception {
+        final File same = new File(dir, "same.txt");
+        final File changed = new File(dir, "changed.txt");
+        Files.write(same.toPath(), "abc".getBytes(StandardCharsets.UTF_8));
+        Files.write(changed.toPath(), "abcd".getBytes(StandardCharsets.UTF_8));
+        final SmbFile remoteSame = remoteFile("same.txt", 3, same.lastModified());
+        final SmbFile remoteChanged = remoteFile("changed.txt", 3, changed.lastModified());
+        when(mockSmbFile.listFiles()).thenReturn(new SmbFile[] {remoteSame, remoteChanged});
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(1, url -> TEST_ROOT_URL.equals(url) ? mockSmbFile : share.file(url));
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setSkipUnchanged(true);
+        client.beginTransfers(transfer);
+        for (final File file : new File[] {same, changed}) {
+            try (InputStream in = new FileInputStream(file)) {
+                client.transferFile(transfer, new FilePath(file), in);
+            }
+        }
+        client.endTransfers(transfer);
+        assertNull(share.get(TEST_ROOT_URL + "same.txt"));
+        assertEquals("abcd", new String(share.get(TEST_ROOT_URL + "changed.txt"), StandardCharsets.UTF_8));
+        verify(mockSmbFile).listFiles();
+    }
+
+    @Test
+    void manifestOnlySkipsFilesThatAreStillOnTheShare(@TempDir final File dir) throws Exception {
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final File kept = new File(dir, "kept.txt");
+        final File removed = new File(dir, "removed.txt");
+        Files.write(kept.toPath(), "kept".getBytes(StandardCharsets.UTF_8));
+        Files.write(removed.toPath(), "removed".getBytes(StandardCharsets.UTF_8));
+        final CifsManifest published = CifsManifest.empty();
+        for (final File file : new File[] {kept, removed})
+            published.put(file.getName(), file.length(), new FilePath(file).act(new CifsManifest.Sha256()));
+        final ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+        published.write(manifestBytes);
+        final FakeShare share = new FakeShare();
+        share.put(TEST_ROOT_URL + CifsManifest.FILE_NAME, manifestBytes.toByteArray());
+        // the same size as the local file, so only the manifest can tell whether it changed
+        share.put(TEST_ROOT_URL + "kept.txt", "KEPT".getBytes(StandardCharsets.UTF_8));
+        final CifsClient client = new ParallelClient(1, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setSkipUnchanged(true);
+        transfer.setUseManifest(true);
+        client.beginTransfers(transfer);
+        for (final File file : new File[] {kept, removed}) {
+            try (InputStream in = new FileInputStream(file)) {
+                client.transferFile(transfer, new FilePath(file), in);
+            }
+        }
+        client.endTransfers(transfer);
+
+        assertEquals("KEPT", new String(share.get(TEST_ROOT_URL + "kept.txt"), StandardCharsets.UTF_8));
+        // deleted from the share since it was recorded in the manifest
+        assertEquals("removed", new String(share.get(TEST_ROOT_URL + "removed.txt"), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void directoriesThatAreDeletedInTheBackgroundAreNotCached(@TempDir final File dir) throws Exception {
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final File file = new File(dir, "file.txt");
+        Files.write(file.toPath(), "file".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        final String tombstone = TEST_ROOT_URL + CifsTombstoneReaper.tombstoneName("old") + '/';
+        share.put(TEST_ROOT_URL + "sub/kept.txt", new byte[] {'k'});
+        share.put(tombstone + "gone.txt", new byte[] {'g'});
+        final CifsClient client = new ParallelClient(1, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setSkipUnchanged(true);
+        client.beginTransfers(transfer);
+        try (InputStream in = new FileInputStream(file)) {
+            client.transferFile(transfer, new FilePath(file), in);
+        }
+        client.endTransfers(transfer);
+
+        final CifsDirectoryCache cache = CifsDirectoryCache.get(buildInfo);
+        assertTrue(cache.contains(TEST_ROOT_URL + "sub/"));
+        assertFalse(cache.contains(tombstone));
+    }
+
+    @Test
+    void mirrorDeletesOnlyWhatWasNotPublished(@TempDir final File dir) throws Exception {
+        final File keep = new File(dir, "keep.txt");
+        final File added = new File(dir, "sub/new.txt");
+        assertTrue(added.getParentFile().mkdirs());
+        Files.write(keep.toPath(), "keep".getBytes(StandardCharsets.UTF_8));
+        Files.write(added.toPath(), "new".getBytes(StandardCharsets.UTF_8));
+        final SmbFile remoteKeep = named("KEEP.TXT");
+        final SmbFile stale = named("stale.txt");
+        final SmbFile oldDir = named("olddir/");
+        final SmbFile remoteSub = named("sub/");
+        final SmbFile remoteManifest = named(CifsManifest.FILE_NAME);
+        when(remoteSub.isDirectory()).thenReturn(true);
+        when(mockSmbFile.listFiles()).thenReturn(new SmbFile[] {remoteKeep, stale, oldDir, remoteSub, remoteManifest});
+        final SmbFile sub = mock(SmbFile.class);
+        final SmbFile gone = named("gone.txt");
+        final SmbFile remoteAdded = named("new.txt");
+        when(sub.exists()).thenReturn(true);
+        when(sub.canRead()).thenReturn(true);
+        when(sub.listFiles()).thenReturn(new SmbFile[] {gone, remoteAdded});
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(1, url -> TEST_ROOT_URL.equals(url) ? mockSmbFile
+                : (TEST_ROOT_URL + "sub/").equals(url) ? sub : share.file(url));
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setMirror(true);
+
+        client.beginTransfers(transfer);
+        client.transferFile(transfer, new FilePath(keep), new ByteArrayInputStream("keep".getBytes(StandardCharsets.UTF_8)));
+        assertTrue(client.changeDirectory("sub"));
+        client.transferFile(transfer, new FilePath(added), new ByteArrayInputStream("new".getBytes(StandardCharsets.UTF_8)));
+        client.endTransfers(transfer);
+
+        verify(stale).delete();
+        verify(oldDir).delete();
+        verify(gone).delete();
+        verify(remoteKeep, never()).delete();
+        verify(remoteSub, never()).delete();
+    }
+
+    private static SmbFile named(final String name) {
+        final SmbFile file = mock(SmbFile.class);
+        when(file.getName()).thenReturn(name);
+        return file;
+    }
+
+    @Test
+    void retryResumesPartlyWrittenFile(@TempDir final File dir) throws Exception {
+        final byte[] contents = new byte[2 * 1024 * 1024 + 17];
+        new Random(7).nextBytes(contents);
+        final File file = new File(dir, "big.bin");
+        Files.write(file.toPath(), contents);
+        final String url = TEST_ROOT_URL + "big.bin";
+        final FakeShare share = new FakeShare();
+        share.put(url, Arrays.copyOf(contents, 1024 * 1024 + 3));
+        CifsResumeState.get(buildInfo).of(TEST_ROOT_URL, 0).start(url);
+        CifsResumeState.get(buildInfo).of(TEST_ROOT_URL, 0).attemptFailed();
+
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+
+        assertArrayEquals(contents, share.get(url));
+        assertEquals(0, share.outputStreams.get());
+        assertEquals(1, share.randomAccessHandles.get());
+    }
+
+    @Test
+    void retryCopiesAgainWhenPartialFileDiffers(@TempDir final File dir) throws Exception {
+        final byte[] contents = new byte[2 * 1024 * 1024];
+        new Random(7).nextBytes(contents);
+        final File file = new File(dir, "big.bin");
+        Files.write(file.toPath(), contents);
+        final String url = TEST_ROOT_URL + "big.bin";
+        final FakeShare share = new FakeShare();
+        share.put(url, new byte[1024 * 1024]);
+        CifsResumeState.get(buildInfo).of(TEST_ROOT_URL, 0).start(url);
+        CifsResumeState.get(buildInfo).of(TEST_ROOT_URL, 0).attemptFailed();
+
+        try (InputStream in = new FileInputStream(file)) {
+            new ParallelClient(1, share::file).transferFile(null, new FilePath(file), in);
+        }
+
+        assertArrayEquals(contents, share.get(url));
+        assertEquals(1, share.outputStreams.get());
+    }
+
+    @Test
+    void retrySkipsFilesCopiedByEarlierAttempt(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "done.txt");
+        Files.write(file.toPath(), "done".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[] {'d', 'o', 'n', 'e'}));
+        CifsResumeState.get(buildInfo).of(TEST_ROOT_URL, 0).attemptFailed();
+
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+
+        assertEquals(1, share.outputStreams.get());
+    }
+
+    @Test
+    void transferSetsOnlyResumeFromTheirOwnFailedAttempts(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "both.txt");
+        Files.write(file.toPath(), "both".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        buildInfo.put(CifsPublisher.CTX_KEY_TRANSFER_SET, 0);
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[] {'b'}));
+        CifsResumeState.get(buildInfo).of(TEST_ROOT_URL, 0).attemptFailed();
+
+        // the other transfer set has not failed, so it is not resuming anything
+        buildInfo.put(CifsPublisher.CTX_KEY_TRANSFER_SET, 1);
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[] {'b'}));
+        assertEquals(2, share.outputStreams.get());
+
+        buildInfo.put(CifsPublisher.CTX_KEY_TRANSFER_SET, 0);
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[0]));
+        assertEquals(2, share.outputStreams.get());
+    }
+
+    @Test
+    void filesAreOnlySkippedAfterAFailedAttempt(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "again.txt");
+        Files.write(file.toPath(), "again".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[] {'a'}));
+
+        // a later transfer set writing the same path is not a retry
+        new ParallelClient(1, share::file).transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[] {'a'}));
+
+        assertEquals(2, share.outputStreams.get());
+    }
+
+    @Test
+    void retryAfterCleaningSendsEveryFileAgain(@TempDir final File dir) throws Exception {
+        final File first = new File(dir, "first.txt");
+        final File second = new File(dir, "second.txt");
+        Files.write(first.toPath(), "first".getBytes(StandardCharsets.UTF_8));
+        Files.write(second.toPath(), "second".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, true, false, false, ",");
+        share.put(TEST_ROOT_URL + "stale.txt", new byte[] {'s'});
+
+        final CifsClient failed = new ParallelClient(1, share::file);
+        failed.beginTransfers(transfer);
+        failed.deleteTree();
+        failed.transferFile(transfer, new FilePath(first), new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)));
+        failed.disconnectQuietly();
+
+        final CifsClient retry = new ParallelClient(1, share::file);
+        retry.beginTransfers(transfer);
+        retry.deleteTree();
+        retry.transferFile(transfer, new FilePath(first), new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)));
+        retry.transferFile(transfer, new FilePath(second), new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)));
+        retry.endTransfers(transfer);
+        retry.disconnect();
+
+        assertEquals("first", new String(share.get(TEST_ROOT_URL + "first.txt"), StandardCharsets.UTF_8));
+        assertEquals("second", new String(share.get(TEST_ROOT_URL + "second.txt"), StandardCharsets.UTF_8));
+        assertNull(share.get(TEST_ROOT_URL + "stale.txt"));
+    }
+
+    @Test
+    void failedFileIsRetriedOnItsOwn(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "flaky.txt");
+        Files.write(file.toPath(), "flaky".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        final AtomicInteger attempts = new AtomicInteger();
+        buildInfo.put(CifsFileRetryPolicy.CTX_KEY_FILE_RETRY, new CifsFileRetryPolicy(2, 1, 1, 10_000));
+        final CifsClient client = new ParallelClient(1, url -> attempts.getAndIncrement() == 0 ? share.brokenFile() : share.file(url));
+
+        client.transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[] {'f'}));
+
+        assertEquals(2, attempts.get());
+        assertEquals("flaky", new String(share.get(TEST_ROOT_URL + "flaky.txt"), StandardCharsets.UTF_8));
+        assertEquals(1, CifsResumeState.get(buildInfo).getRetries());
+    }
+
+    @Test
+    void fileFailsOnceRetriesAreUsedUp(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "broken.txt");
+        Files.write(file.toPath(), "broken".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        buildInfo.put(CifsFileRetryPolicy.CTX_KEY_FILE_RETRY, new CifsFileRetryPolicy(2, 1, 1, 10_000));
+        final CifsClient client = new ParallelClient(1, url -> share.brokenFile());
+
+        assertThrows(SmbException.class, () -> client.transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[0])));
+        assertEquals(2, CifsResumeState.get(buildInfo).getRetries());
+    }
+
+    @Test
+    void fileFailsAtOnceWhenRetryingCannotHelp(@TempDir final File dir) throws Exception {
+        final File file = new File(dir, "denied.txt");
+        Files.write(file.toPath(), "denied".getBytes(StandardCharsets.UTF_8));
+        final FakeShare share = new FakeShare();
+        final AtomicInteger attempts = new AtomicInteger();
+        buildInfo.put(CifsFileRetryPolicy.CTX_KEY_FILE_RETRY, new CifsFileRetryPolicy(2, 60_000, 60_000, 600_000));
+        final CifsClient client = new ParallelClient(1, url -> {
+            attempts.incrementAndGet();
+            return share.deniedFile();
+        });
+
+        assertThrows(SmbException.class, () -> client.transferFile(null, new FilePath(file), new ByteArrayInputStream(new byte[0])));
+        assertEquals(1, attempts.get());
+        assertEquals(0, CifsResumeState.get(buildInfo).getRetries());
+    }
+
+    @Test
+    void remoteSourceIsCopiedOnTheServer() throws Exception {
+        final FakeShare share = new FakeShare();
+        final byte[] contents = "release".getBytes(StandardCharsets.UTF_8);
+        share.put(TEST_ROOT_URL + "staging/app.zip", contents);
+        final CifsClient client = new ParallelClient(1, share::file);
+        final CifsTransfer transfer = new CifsTransfer("", "", "release", "", false, false, false, false, false, ",");
+        transfer.setRemoteSource("/staging/app.zip");
+
+        client.beginTransfers(transfer);
+        client.endTransfers(transfer);
+
+        assertArrayEquals(contents, share.get(TEST_ROOT_URL + "release/app.zip"));
+        assertEquals(1, share.serverCopies.get());
+        assertEquals(0, share.outputStreams.get());
+    }
+
+    @Test
+    void remoteSourceMustNotContainTheRemoteDirectory() throws Exception {
+        final FakeShare share = new FakeShare();
+        share.put(TEST_ROOT_URL + "staging/", new byte[0]);
+        final CifsClient client = new ParallelClient(1, url -> share.file(url.endsWith("staging") ? url + '/' : url));
+        final CifsTransfer transfer = new CifsTransfer("", "", "staging/release", "", false, false, false, false, false, ",");
+        transfer.setRemoteSource("staging");
+
+        client.beginTransfers(transfer);
+        assertThrows(BapPublisherException.class, () -> client.endTransfers(transfer));
+        assertEquals(0, share.serverCopies.get());
+    }
+
+    @Test
+    void identicalContentIsCopiedOnTheServer(@TempDir final File dir) throws Exception {
+        final byte[] contents = "same bytes".getBytes(StandardCharsets.UTF_8);
+        final File one = new File(dir, "one.dll");
+        final File two = new File(dir, "two.dll");
+        Files.write(one.toPath(), contents);
+        Files.write(two.toPath(), contents);
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(1, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setDeduplicate(true);
+
+        client.beginTransfers(transfer);
+        client.transferFile(transfer, new FilePath(one), new ByteArrayInputStream(contents));
+        client.endTransfers(transfer);
+        final CifsClient next = new ParallelClient(1, share::file);
+        next.beginTransfers(transfer);
+        next.transferFile(transfer, new FilePath(two), new ByteArrayInputStream(contents));
+        next.endTransfers(transfer);
+
+        assertArrayEquals(contents, share.get(TEST_ROOT_URL + "two.dll"));
+        assertEquals(1, share.serverCopies.get());
+        final CifsContentIndex index = CifsContentIndex.read(new ByteArrayInputStream(share.get(TEST_ROOT_URL + CifsContentIndex.FILE_NAME)), 10);
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    void duplicatesInOnePublishAreSentOnce(@TempDir final File dir) throws Exception {
+        final byte[] contents = "same bytes".getBytes(StandardCharsets.UTF_8);
+        final String[] paths = {"x86/lib.dll", "x64/lib.dll", "arm64/lib.dll"};
+        for (final String path : paths) {
+            final File file = new File(dir, path);
+            assertTrue(file.getParentFile().mkdirs());
+            Files.write(file.toPath(), contents);
+        }
+        buildInfo.setBaseDirectory(new FilePath(dir));
+        final FakeShare share = new FakeShare();
+        final CifsClient client = new ParallelClient(2, share::file);
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setDeduplicate(true);
+
+        client.beginTransfers(transfer);
+        for (final String path : paths) {
+            client.changeToInitialDirectory();
+            client.changeDirectory(path.substring(0, path.indexOf('/')));
+            client.transferFile(transfer, new FilePath(new File(dir, path)), new ByteArrayInputStream(contents));
+        }
+        client.endTransfers(transfer);
+
+        for (final String path : paths) assertArrayEquals(contents, share.get(TEST_ROOT_URL + path));
+        assertEquals(1, share.outputStreams.get());
+        assertEquals(2, share.serverCopies.get());
+    }
+
+    @Test
+    @Timeout(30)
+    void duplicatesDoNotWaitForContentThatWasNeverSent(@TempDir final File dir) throws Exception {
+        final byte[] contents = "same bytes".getBytes(StandardCharsets.UTF_8);
+        final File base = new File(dir, "base.dll");
+        final File one = new File(dir, "one.dll");
+        final File two = new File(dir, "two.dll");
+        for (final File file : new File[] {base, one, two}) Files.write(file.toPath(), contents);
+        final FakeShare share = new FakeShare();
+        final CifsTransfer transfer = new CifsTransfer("**", "", "", "", false, false, false, false, false, ",");
+        transfer.setDeduplicate(true);
+        final CifsClient first = new ParallelClient(1, share::file);
+        first.beginTransfers(transfer);
+        first.transferFile(transfer, new FilePath(base), new ByteArrayInputStream(contents));
+        first.endTransfers(transfer);
+
+        // one.dll is copied on the server from base.dll, but then cannot be recorded
+        share.unstamped.add(TEST_ROOT_URL + "one.dll");
+        final CifsClient client = new ParallelClient(2, share::file);
+        client.beginTransfers(transfer);
+        assertThrows(SmbException.class, () -> client.transferFile(transfer, new FilePath(one), new ByteArrayInputStream(contents)));
+        client.transferFile(transfer, new FilePath(two), new ByteArrayInputStream(contents));
+        client.endTransfers(transfer);
+
+        assertArrayEquals(contents, share.get(TEST_ROOT_URL + "two.dll"));
+    }
+
+    private static SmbFile remoteFile(final String name, final long length, final long lastModified) throws Exception {
+        final SmbFile file = mock(SmbFile.class);
+        when(file.getName()).thenReturn(name);
+        when(file.length()).thenReturn(length);
+        when(file.lastModified()).thenReturn(lastModified);
+        return file;
+    }
+
+    private interface SmbFileFactory {
+        SmbFile create(String url);
+    }
+
+    private class ParallelClient extends CifsClient {
+        private final SmbFileFactory files;
+        ParallelClient(final int parallelism, final SmbFileFactory files) {
+            super(CifsContextPool.unpooled(SingletonContext.getInstance()), buildInfo, TEST_ROOT_URL, BUFFER_SIZE, parallelism);
+            this.files = files;
+        }
+        @Override
+        protected SmbFile createSmbFile(final String url) {
+            return files.create(url);
+        }
+    }
+
+    /**
+     * In memory stand in for a share - files written through output streams and random access handles end up in a map.
+     */
+    private static final class FakeShare {
+        private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+        private final AtomicInteger randomAccessHandles = new AtomicInteger();
+        private final AtomicInteger openHandles = new AtomicInteger();
+        private final AtomicInteger mostOpenHandles = new AtomicInteger();
+        private final AtomicInteger outputStreams = new AtomicInteger();
+        private final List<String> directories = Collections.synchronizedList(new ArrayList<>());
+        private final Map<SmbFile, String> urls = new ConcurrentHashMap<>();
+        private final AtomicInteger serverCopies = new AtomicInteger();
+        private final List<String> unstamped = Collections.synchronizedList(new ArrayList<>());
+
+        SmbFile file(final String url) {
+            final SmbFile file = mock(SmbFile.class, invocation -> {
+                switch (invocation.getMethod().getName()) {
+                    case "exists":
+                        return files.containsKey(url);
+                    case "listFiles":
+                        if (invocation.getArguments().length > 0) return RETURNS_DEFAULTS.answer(invocation);
+                        return files.keySet().stream().filter(u -> u.startsWith(url) && !u.equals(url))
+                                .map(u -> url + u.substring(url.length()).replaceFirst("/.*", "/")).distinct()
+                                .map(this::file).toArray(SmbFile[]::new);
+                    case "delete":
+                        files.keySet().removeIf(u -> u.startsWith(url));
+                        return null;
+                    case "isDirectory":
+                        return url.endsWith("/");
+                    case "getName":
+                        return url.substring(url.lastIndexOf('/', url.length() - 2) + 1);
+                    case "getCanonicalPath":
+                        return url;
+                    case "copyTo":
+                        serverCopies.incrementAndGet();
+                        files.put(urls.get(invocation.<SmbFile>getArgument(0)), files.get(url));
+                        return null;
+                    case "lastModified":
+                        if (unstamped.contains(url)) throw new SmbException("no timestamp");
+                        return RETURNS_DEFAULTS.answer(invocation);
+                    case "mkdir":
+                        directories.add(url);
+                        return null;
+                    case "length":
+                        return files.containsKey(url) ? (long) files.get(url).length : 0L;
+                    case "getInputStream":
+                        return new ByteArrayInputStream(files.get(url));
+                    case "getOutputStream":
+                        outputStreams.incrementAndGet();
+                        return new ByteArrayOutputStream() {
+                            @Override
+                            public void close() {
+                                files.put(url, toByteArray());
+                            }
+                        };
+                    case "openRandomAccess":
+                        randomAccessHandles.incrementAndGet();
+                        mostOpenHandles.accumulateAndGet(openHandles.incrementAndGet(), Math::max);
+                        return randomAccess(url);
+                    default:
+                        return RETURNS_DEFAULTS.answer(invocation);
+                }
+            });
+            urls.put(file, url);
+            return file;
+        }
+
+        SmbFile brokenFile() {
+            return mock(SmbFile.class, invocation -> {
+                if ("getOutputStream".equals(invocation.getMethod().getName())) throw new SmbException("no space");
+                return RETURNS_DEFAULTS.answer(invocation);
+            });
+        }
+
+        SmbFile deniedFile() {
+            return mock(SmbFile.class, invocation -> {
+                if ("getOutputStream".equals(invocation.getMethod().getName()))
+                    throw new SmbException(NtStatus.NT_STATUS_ACCESS_DENIED, false);
+                return RETURNS_DEFAULTS.answer(invocation);
+            });
+        }
+
+        private SmbRandomAccess randomAccess(final String url) {
+            final long[] position = new long[1];
+            return mock(SmbRandomAccess.class, invocation -> {
+                switch (invocation.getMethod().getName()) {
+                    case "seek":
+                        position[0] = invocation.<Long>getArgument(0);
+                        return null;
+                    case "setLength":
+                        synchronized (files) {
+                            final byte[] existing = files.getOrDefault(url, new byte[0]);
+                            files.put(url, Arrays.copyOf(existing, invocation.<Long>getArgument(0).intValue()));
+                        }
+                        return null;
+                    case "readFully": {
+                        final byte[] into = invocation.getArgument(0);
+                        System.arraycopy(files.get(url), (int) position[0], into, 0, into.length);
+                        position[0] += into.length;
+                        return null;
+                    }
+                    case "write":
+                        if (invocation.getArguments().length == 3) {
+                            final int length = invocation.<Integer>getArgument(2);
+                            synchronized (files) {
+                                final byte[] existing = files.get(url);
+                                if (existing.length < position[0] + length) files.put(url, Arrays.copyOf(existing, (int) position[0] + length));
+                                System.arraycopy(invocation.<byte[]>getArgument(0), invocation.<Integer>getArgument(1),
+                                                 files.get(url), (int) position[0], length);
+                            }
+                            position[0] += length;
+                        }
+                        return null;
+                    case "close":
+                        openHandles.decrementAndGet();
+                        return null;
+                    default:
+                        return RETURNS_DEFAULTS.answer(invocation);
+                }
+            });
+        }
+
+        byte[] get(final String url) {
+            return files.get(url);
+        }
+
+        void put(final String url, final byte[] contents) {
+            files.put(url, contents);
+        }
+
+        int size() {
+            return files.size();
+        }
+    }
+
     private class CifsClientWithMockFiles extends CifsClient {
         private final Iterator<String> expectedUrls;
         public CifsClientWithMockFiles(final String... expectedUrls) {
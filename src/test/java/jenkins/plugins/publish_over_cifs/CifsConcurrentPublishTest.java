@@ -0,0 +1,140 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.model.TaskListener;
+import hudson.util.StreamTaskListener;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+class CifsConcurrentPublishTest {
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+    private final TaskListener listener = new StreamTaskListener(console, StandardCharsets.UTF_8);
+
+    @Test
+    void groupsPublishersByHostInConfiguredOrder() {
+        final Map<String, List<CifsPublisher>> byHost = CifsConcurrentPublish.byHost(
+                Arrays.asList(publisher("b"), publisher("a"), publisher("b")));
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<>(byHost.keySet()));
+        assertEquals(2, byHost.get("b").size());
+        assertEquals(1, byHost.get("a").size());
+    }
+
+    @Test
+    void outputIsCopiedInConfiguredOrder() throws Exception {
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        CifsConcurrentPublish.run(hosts("first", "second"), 2, false, listener, (publishers, buffered) -> {
+            final String name = publishers.get(0).getConfigName();
+            if ("first".equals(name)) assertTrue(secondDone.await(10, TimeUnit.SECONDS));
+            buffered.getLogger().println("published " + name);
+            if ("second".equals(name)) secondDone.countDown();
+            return true;
+        });
+        final String output = console.toString(StandardCharsets.UTF_8);
+        assertTrue(output.indexOf("published first") < output.indexOf("published second"), output);
+    }
+
+    @Test
+    void failureStopsHostsThatHaveNotStarted() throws Exception {
+        final List<String> published = Collections.synchronizedList(new ArrayList<>());
+        CifsConcurrentPublish.run(hosts("first", "second"), 1, false, listener, (publishers, buffered) -> {
+            published.add(publishers.get(0).getConfigName());
+            return false;
+        });
+        assertEquals(Collections.singletonList("first"), published);
+        assertTrue(console.toString(StandardCharsets.UTF_8).contains(Messages.console_concurrent_skipped("second")));
+    }
+
+    @Test
+    void continueOnErrorPublishesToEveryHostThenThrows() throws Exception {
+        final List<String> published = Collections.synchronizedList(new ArrayList<>());
+        final IOException thrown = assertThrows(IOException.class, () ->
+            CifsConcurrentPublish.run(hosts("first", "second"), 1, true, listener, (publishers, buffered) -> {
+                published.add(publishers.get(0).getConfigName());
+                buffered.getLogger().println("published");
+                throw new IOException("failed " + publishers.get(0).getConfigName());
+            }));
+        assertEquals("failed first", thrown.getMessage());
+        assertEquals(Arrays.asList("first", "second"), published);
+    }
+
+    @Test
+    void eachHostReportsItsOwnOutcome() throws Exception {
+        final CountDownLatch firstFailed = new CountDownLatch(1);
+        final List<String> published = Collections.synchronizedList(new ArrayList<>());
+        final boolean ok = CifsConcurrentPublish.run(hosts("first", "second"), 2, true, listener, (publishers, buffered) -> {
+            final String name = publishers.get(0).getConfigName();
+            if ("first".equals(name)) {
+                firstFailed.countDown();
+                return false;
+            }
+            // finishing after another host failed does not make this one fail
+            assertTrue(firstFailed.await(10, TimeUnit.SECONDS));
+            published.add(name);
+            return true;
+        });
+        assertFalse(ok);
+        assertEquals(Collections.singletonList("second"), published);
+        assertTrue(CifsConcurrentPublish.run(hosts("first", "second"), 2, false, listener, (publishers, buffered) -> true));
+    }
+
+    @Test
+    void aBadLimitStillPublishesOneAtATime() throws Exception {
+        final List<String> published = Collections.synchronizedList(new ArrayList<>());
+        assertTrue(CifsConcurrentPublish.run(hosts("first", "second"), 0, false, listener, (publishers, buffered) -> {
+            published.add(publishers.get(0).getConfigName());
+            return true;
+        }));
+        assertEquals(Arrays.asList("first", "second"), published);
+    }
+
+    private static Map<String, List<CifsPublisher>> hosts(final String... names) {
+        final List<CifsPublisher> publishers = new ArrayList<>();
+        for (final String name : names) publishers.add(publisher(name));
+        return CifsConcurrentPublish.byHost(publishers);
+    }
+
+    private static CifsPublisher publisher(final String configName) {
+        return new CifsPublisher(configName, false, new ArrayList<>(0), false, false, null, null);
+    }
+
+}
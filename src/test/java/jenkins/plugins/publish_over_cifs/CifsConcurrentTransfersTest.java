@@ -0,0 +1,131 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.FilePath;
+import hudson.util.StreamTaskListener;
+import jenkins.plugins.publish_over.BPBuildInfo;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+class CifsConcurrentTransfersTest {
+
+    private final ByteArrayOutputStream console = new ByteArrayOutputStream();
+    private final BPBuildInfo buildInfo = createBuildInfo();
+
+    @Test
+    void transferSetsToSeparateDirectoriesDoNotWait() {
+        final List<List<Integer>> dependencies = CifsConcurrentTransfers.dependencies(
+                Arrays.asList(transfer("a", true), transfer("b", true), transfer("c", false)), buildInfo);
+        assertEquals(Arrays.asList(List.of(), List.of(), List.of()), dependencies);
+    }
+
+    @Test
+    void cleaningWaitsForOverlappingDirectoriesOnly() {
+        final List<List<Integer>> dependencies = CifsConcurrentTransfers.dependencies(
+                Arrays.asList(transfer("A/b", false), transfer("a", true), transfer("c", false), transfer("a/b/c", false)),
+                buildInfo);
+        assertEquals(Arrays.asList(List.of(), List.of(0), List.of(), List.of(1)), dependencies);
+    }
+
+    @Test
+    void writingToOverlappingDirectoriesDoesNotWait() {
+        final List<List<Integer>> dependencies = CifsConcurrentTransfers.dependencies(
+                Arrays.asList(transfer("", false), transfer("a", false)), buildInfo);
+        assertEquals(Arrays.asList(List.of(), List.of()), dependencies);
+    }
+
+    @Test
+    void outputIsCopiedInConfiguredOrder() throws Exception {
+        final CountDownLatch secondDone = new CountDownLatch(1);
+        CifsConcurrentTransfers.run(Arrays.asList(transfer("a", false), transfer("b", false)), 2, buildInfo, (index, setBuildInfo) -> {
+            if (index == 0) assertTrue(secondDone.await(10, TimeUnit.SECONDS));
+            setBuildInfo.println("published " + index);
+            if (index == 1) secondDone.countDown();
+        });
+        final String output = console.toString(StandardCharsets.UTF_8);
+        assertTrue(output.indexOf("published 0") < output.indexOf("published 1"), output);
+    }
+
+    @Test
+    void cleaningTransferSetWaitsForTheOneBefore() throws Exception {
+        final List<Integer> finished = Collections.synchronizedList(new ArrayList<>());
+        CifsConcurrentTransfers.run(Arrays.asList(transfer("a/b", false), transfer("a", true)), 2, buildInfo, (index, setBuildInfo) -> {
+            if (index == 0) Thread.sleep(100);
+            finished.add(index);
+        });
+        assertEquals(Arrays.asList(0, 1), finished);
+    }
+
+    @Test
+    void failureStopsTransferSetsThatHaveNotStarted() throws Exception {
+        final List<Integer> published = Collections.synchronizedList(new ArrayList<>());
+        final IOException thrown = assertThrows(IOException.class, () ->
+            CifsConcurrentTransfers.run(Arrays.asList(transfer("a", false), transfer("b", false)), 1, buildInfo, (index, setBuildInfo) -> {
+                published.add(index);
+                throw new IOException("failed " + index);
+            }));
+        assertEquals("failed 0", thrown.getMessage());
+        assertEquals(Collections.singletonList(0), published);
+        assertTrue(console.toString(StandardCharsets.UTF_8).contains(Messages.console_transfers_skipped(2)));
+    }
+
+    @Test
+    void copiesShareTheResumeState() {
+        final BPBuildInfo copy = CifsConcurrentTransfers.copy(buildInfo, new StreamTaskListener(new ByteArrayOutputStream(), StandardCharsets.UTF_8));
+        assertSame(CifsResumeState.get(buildInfo), CifsResumeState.get(copy));
+        assertSame(CifsDirectoryCache.get(buildInfo), CifsDirectoryCache.get(copy));
+    }
+
+    private BPBuildInfo createBuildInfo() {
+        final BPBuildInfo info = new BPBuildInfo(new StreamTaskListener(console, StandardCharsets.UTF_8), "", new FilePath(new File("")),
+                                                 CifsTestHelper.createEmptyBuildEnv(), null);
+        info.setBuildTime(info.getCurrentBuildEnv().getBuildTime());
+        info.setBaseDirectory(info.getCurrentBuildEnv().getBaseDirectory());
+        info.setEnvVars(info.getCurrentBuildEnv().getEnvVars());
+        return info;
+    }
+
+    private static CifsTransfer transfer(final String remoteDirectory, final boolean cleanRemote) {
+        return new CifsTransfer("**", "", remoteDirectory, "", false, false, cleanRemote, false, false, ",");
+    }
+
+}
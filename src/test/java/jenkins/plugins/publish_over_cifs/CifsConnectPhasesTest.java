@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifsConnectPhasesTest {
+
+    @Test
+    void phasesNotReachedAreReportedAsMinusOne() {
+        final CifsConnectPhases phases = new CifsConnectPhases(true);
+        assertTrue(phases.time(CifsConnectPhases.Phase.EXISTS, () -> true));
+
+        assertTrue(phases.getMillis(CifsConnectPhases.Phase.EXISTS) >= 0);
+        assertEquals(-1, phases.getMillis(CifsConnectPhases.Phase.CONNECT));
+        assertEquals(-1, phases.getMillis(CifsConnectPhases.Phase.CAN_READ));
+        assertNull(phases.getFailed());
+    }
+
+    @Test
+    void onlyTheFirstFailureIsKept() {
+        final CifsConnectPhases phases = new CifsConnectPhases(true);
+        assertThrows(IOException.class, () -> phases.time(CifsConnectPhases.Phase.EXISTS, () -> {
+            throw new IOException("access denied");
+        }));
+        assertThrows(IOException.class, () -> phases.time(CifsConnectPhases.Phase.CAN_READ, () -> {
+            throw new IOException("access denied");
+        }));
+
+        assertEquals(CifsConnectPhases.Phase.EXISTS, phases.getFailed());
+        assertEquals(-1, phases.getMillis(CifsConnectPhases.Phase.EXISTS));
+    }
+
+    @Test
+    void theFirstCallOnANewConnectionIsTimedAsTheConnect() {
+        assertEquals(CifsConnectPhases.Phase.CONNECT, new CifsConnectPhases(false).first());
+        assertEquals(CifsConnectPhases.Phase.EXISTS, new CifsConnectPhases(true).first());
+    }
+
+    @Test
+    void phasesAreRecordedAsCreateClientOperations() {
+        final CifsConnectPhases phases = new CifsConnectPhases(true);
+        phases.time(CifsConnectPhases.Phase.EXISTS, () -> true);
+        assertThrows(IOException.class, () -> phases.time(CifsConnectPhases.Phase.CAN_READ, () -> {
+            throw new IOException("access denied");
+        }));
+
+        final CifsMetrics.Sample sample = new CifsMetrics.Sample();
+        phases.recordTo(sample);
+
+        assertEquals(1, sample.getOperation(CifsMetrics.Operation.CONNECT_EXISTS).getCount());
+        assertEquals(0, sample.getOperation(CifsMetrics.Operation.CONNECT_EXISTS).getFailures());
+        assertEquals(1, sample.getOperation(CifsMetrics.Operation.CONNECT_CAN_READ).getFailures());
+        assertEquals(0, sample.getOperation(CifsMetrics.Operation.CONNECT_NEW).getCount());
+        assertTrue(sample.toJson().getJSONObject("operations").has("createClient.exists"));
+    }
+
+}
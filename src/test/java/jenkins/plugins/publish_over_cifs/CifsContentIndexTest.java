@@ -0,0 +1,96 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifsContentIndexTest {
+
+    @Test
+    void entriesSurviveAWriteAndRead() throws Exception {
+        final CifsContentIndex index = CifsContentIndex.empty(10);
+        index.put(digest(1), 100, "a/one.dll", 1234);
+        assertTrue(index.isChanged());
+
+        final CifsContentIndex read = roundTrip(index);
+        assertFalse(index.isChanged());
+        final CifsContentIndex.Entry entry = read.find(digest(1), 100);
+        assertEquals("a/one.dll", entry.getPath());
+        assertEquals(100, entry.getSize());
+        assertEquals(1234, entry.getLastModified());
+        assertNull(read.find(digest(1), 101));
+    }
+
+    @Test
+    void leastRecentlyUsedEntriesAreDropped() throws Exception {
+        final CifsContentIndex index = CifsContentIndex.empty(2);
+        index.put(digest(1), 1, "one", 0);
+        index.put(digest(2), 2, "two", 0);
+        index.find(digest(1), 1);
+        index.put(digest(3), 3, "three", 0);
+
+        final CifsContentIndex read = roundTrip(index);
+        assertEquals(2, read.size());
+        assertNull(read.find(digest(2), 2));
+        assertEquals("one", read.find(digest(1), 1).getPath());
+    }
+
+    @Test
+    void removedEntriesAreNotFound() {
+        final CifsContentIndex index = CifsContentIndex.empty(10);
+        index.put(digest(1), 1, "one", 0);
+        index.remove(digest(1), 1);
+        assertNull(index.find(digest(1), 1));
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        assertThrows(IOException.class, () -> CifsContentIndex.read(new ByteArrayInputStream(new byte[12]), 10));
+    }
+
+    private static CifsContentIndex roundTrip(final CifsContentIndex index) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        index.write(out);
+        return CifsContentIndex.read(new ByteArrayInputStream(out.toByteArray()), 10);
+    }
+
+    private static byte[] digest(final int seed) {
+        final byte[] digest = new byte[CifsManifest.DIGEST_LENGTH];
+        Arrays.fill(digest, (byte) seed);
+        return digest;
+    }
+
+}
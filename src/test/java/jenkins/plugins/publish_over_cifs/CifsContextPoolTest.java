@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.CIFSContext;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+class CifsContextPoolTest {
+
+    private static final long IDLE_TIMEOUT = 1000;
+
+    private final CifsContextPool pool = new CifsContextPool(2, IDLE_TIMEOUT);
+
+    @Test
+    void sameSettingsReuseContext() throws Exception {
+        final CifsContextPool.Lease first = pool.borrow(key("server", "pw"), () -> mock(CIFSContext.class));
+        first.release();
+        final CifsContextPool.Lease second = pool.borrow(key("server", "pw"), () -> mock(CIFSContext.class));
+        assertFalse(first.isReused());
+        assertTrue(second.isReused());
+        assertSame(first.getContext(), second.getContext());
+        assertEquals(1, pool.getStats().getHits());
+        assertEquals(1, pool.getStats().getMisses());
+    }
+
+    @Test
+    void differentCredentialsGetDifferentContexts() throws Exception {
+        final CifsContextPool.Lease first = pool.borrow(key("server", "pw"), () -> mock(CIFSContext.class));
+        final CifsContextPool.Lease second = pool.borrow(key("server", "other"), () -> mock(CIFSContext.class));
+        assertNotSame(first.getContext(), second.getContext());
+    }
+
+    @Test
+    void idleContextsAreEvictedAndClosed() throws Exception {
+        final CifsContextPool.Lease lease = pool.borrow(key("server", "pw"), () -> mock(CIFSContext.class));
+        assertEquals(0, pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT));
+        lease.release();
+        assertEquals(1, pool.evictIdle(System.currentTimeMillis() + IDLE_TIMEOUT));
+        verify(lease.getContext()).close();
+        assertEquals(0, pool.getStats().getSize());
+    }
+
+    @Test
+    void contextsBeyondMaxSizeAreClosedOnRelease() throws Exception {
+        final CifsContextPool.Lease one = pool.borrow(key("one", "pw"), () -> mock(CIFSContext.class));
+        final CifsContextPool.Lease two = pool.borrow(key("two", "pw"), () -> mock(CIFSContext.class));
+        final CifsContextPool.Lease three = pool.borrow(key("three", "pw"), () -> mock(CIFSContext.class));
+        assertEquals(2, pool.getStats().getSize());
+        three.release();
+        three.release();
+        verify(three.getContext()).close();
+        one.release();
+        two.release();
+        verify(one.getContext(), never()).close();
+    }
+
+    private static CifsContextPool.Key key(final String hostname, final String password) {
+        return new CifsContextPool.Key(hostname, CifsHostConfiguration.DEFAULT_PORT, CifsHostConfiguration.SmbVersions.SMB_V2,
+                                       CifsHostConfiguration.DEFAULT_TIMEOUT, null, "", "user", password);
+    }
+
+}
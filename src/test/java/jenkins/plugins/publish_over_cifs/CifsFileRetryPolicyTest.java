@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import jcifs.smb.NtStatus;
+import jcifs.smb.SmbException;
+import jenkins.plugins.publish_over.BapPublisherException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.NoSuchFileException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifsFileRetryPolicyTest {
+
+    @Test
+    void delayDoublesUpToTheCeilingWithJitter() {
+        final CifsFileRetryPolicy policy = new CifsFileRetryPolicy(10, 100, 1000, Long.MAX_VALUE / 2);
+        for (int i = 0; i < 100; i++) {
+            assertBetween(50, 100, policy.getDelay(1, 0));
+            assertBetween(100, 200, policy.getDelay(2, 0));
+            assertBetween(200, 400, policy.getDelay(3, 0));
+            assertBetween(500, 1000, policy.getDelay(5, 0));
+            assertBetween(500, 1000, policy.getDelay(10, 0));
+        }
+    }
+
+    @Test
+    void givesUpAfterTheRetriesOrTheTimeLimit() {
+        final CifsFileRetryPolicy policy = new CifsFileRetryPolicy(3, 100, 100, 1000);
+        assertEquals(-1, policy.getDelay(4, 0));
+        assertEquals(-1, policy.getDelay(1, 1000));
+        assertEquals(-1, CifsFileRetryPolicy.NONE.getDelay(1, 0));
+    }
+
+    @Test
+    void onlyTransientFailuresAreRetried() {
+        assertTrue(CifsFileRetryPolicy.isTransient(new SmbException("connection reset")));
+        assertTrue(CifsFileRetryPolicy.isTransient(new IOException("broken pipe")));
+        assertTrue(CifsFileRetryPolicy.isTransient(new BapPublisherException("write failed", new SmbException("timed out"))));
+        assertFalse(CifsFileRetryPolicy.isTransient(new SmbException(NtStatus.NT_STATUS_ACCESS_DENIED, false)));
+        assertFalse(CifsFileRetryPolicy.isTransient(new BapPublisherException("bad configuration")));
+        assertFalse(CifsFileRetryPolicy.isTransient(new BapPublisherException("denied",
+                new SmbException(NtStatus.NT_STATUS_BAD_NETWORK_NAME, false))));
+        assertFalse(CifsFileRetryPolicy.isTransient(new InterruptedIOException()));
+        assertFalse(CifsFileRetryPolicy.isTransient(new NoSuchFileException("gone.txt")));
+    }
+
+    private static void assertBetween(final long min, final long max, final long actual) {
+        assertTrue(actual >= min && actual <= max, actual + " not in [" + min + ", " + max + "]");
+    }
+
+}
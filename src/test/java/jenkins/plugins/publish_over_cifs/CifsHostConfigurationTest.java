@@ -39,9 +39,18 @@ import org.junit.jupiter.api.Test;
 
 import java.io.File;
 import java.io.Serial;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.verify;
@@ -197,6 +206,99 @@ class CifsHostConfigurationTest {
         verify(mockSmbFile).canRead();
     }
 
+    @Test
+    void buildsFanningOutInOppositeOrdersDoNotDeadlock() throws Exception {
+        final CifsHostConfiguration a = new ConfigWithMockFile("fanOutA", "serverA", null, null, SHARE, mockSmbFile);
+        final CifsHostConfiguration b = new ConfigWithMockFile("fanOutB", "serverB", null, null, SHARE, mockSmbFile);
+        a.setMaxConcurrentPublishes(1);
+        b.setMaxConcurrentPublishes(1);
+        final ExecutorService builds = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 50; i++) {
+                final Future<?> forward = builds.submit(() -> publishTo(a, b));
+                final Future<?> backward = builds.submit(() -> publishTo(b, a));
+                forward.get(10, TimeUnit.SECONDS);
+                backward.get(10, TimeUnit.SECONDS);
+            }
+        } finally {
+            builds.shutdownNow();
+        }
+    }
+
+    @Test
+    void theSameLimitsAreOnlyAcquiredOnce() {
+        final CifsHostConfiguration config = new ConfigWithMockFile("once", "onceServer", null, null, SHARE, mockSmbFile);
+        config.setMaxConcurrentPublishes(1);
+        final List<CifsHostLimits.Permit> permits = CifsHostConfiguration.acquirePublishes(buildInfo, Arrays.asList(config, config));
+        assertEquals(CifsHostLimits.Permit.NONE, permits.get(1));
+        permits.get(0).release();
+    }
+
+    @Test
+    void transferSetsPublishUnderThePermitOfTheirPublisher() {
+        final CifsHostConfiguration config = new ConfigWithMockFile("held", "heldServer", null, null, SHARE, mockSmbFile);
+        config.setMaxConcurrentPublishes(1);
+        final List<CifsHostLimits.Permit> permits = config.acquirePublishes(buildInfo);
+        buildInfo.put(CifsPublisher.CTX_KEY_PUBLISH_PERMITS, permits);
+        // a second client would wait for the first if each took a permit of its own
+        final CifsClient first = config.createClient(buildInfo);
+        final CifsClient second = config.createClient(buildInfo);
+        assertEquals(1, config.getActivePublishes());
+        first.disconnect();
+        second.disconnect();
+        assertEquals(1, config.getActivePublishes());
+        permits.get(0).release();
+        assertEquals(0, config.getActivePublishes());
+    }
+
+    @Test
+    void configurationsOnOneServerShareItsLowestLimits() {
+        final CifsHostConfiguration builds = new ConfigWithMockFile("sharedBuilds", "sharedServer", null, null, "builds/", mockSmbFile);
+        final CifsHostConfiguration docs = new ConfigWithMockFile("sharedDocs", "sharedServer", null, null, "docs/", mockSmbFile);
+        final CifsHostConfiguration other = new ConfigWithMockFile("sharedOther", "otherServer", null, null, SHARE, mockSmbFile);
+        builds.setMaxConcurrentPublishes(3);
+        builds.setMaxConcurrentStreams(4);
+        docs.setMaxConcurrentPublishes(2);
+        other.setMaxConcurrentPublishes(1);
+        final Map<String, long[]> lowest = CifsHostConfiguration.lowestServerLimits(List.of(builds, docs, other));
+        assertArrayEquals(new long[] {2, 4, 0}, lowest.get("sharedServer:" + CifsHostConfiguration.DEFAULT_PORT));
+        assertArrayEquals(new long[] {1, 0, 0}, lowest.get("otherServer:" + CifsHostConfiguration.DEFAULT_PORT));
+
+        buildInfo.put(CifsPublisher.CTX_KEY_SERVER_LIMITS, lowest);
+        final CifsHostLimits.Permit building = CifsHostConfiguration.acquirePublishes(buildInfo, List.of(builds)).get(0);
+        final CifsHostLimits.Permit documenting = CifsHostConfiguration.acquirePublishes(buildInfo, List.of(docs)).get(0);
+        // both are counted against the server, whichever configuration they went through
+        assertEquals(2, builds.getActivePublishes());
+        assertEquals(2, docs.getActivePublishes());
+        building.release();
+        documenting.release();
+        assertEquals(0, docs.getActivePublishes());
+    }
+
+    @Test
+    void configurationsOnOneServerShareOneBandwidthLimit() {
+        final CifsHostConfiguration limited = new ConfigWithMockFile("rateLimited", "rateServer", null, null, "builds/", mockSmbFile);
+        final CifsHostConfiguration faster = new ConfigWithMockFile("rateFaster", "rateServer", null, null, "docs/", mockSmbFile);
+        final CifsHostConfiguration unlimited = new ConfigWithMockFile("rateUnlimited", "rateServer", null, null, SHARE, mockSmbFile);
+        limited.setMaxBytesPerSecond(1000);
+        faster.setMaxBytesPerSecond(5000);
+        when(mockSmbFile.exists()).thenReturn(true);
+        when(mockSmbFile.canRead()).thenReturn(true);
+        buildInfo.put(CifsPublisher.CTX_KEY_SERVER_LIMITS, CifsHostConfiguration.lowestServerLimits(List.of(limited, faster, unlimited)));
+
+        final CifsBandwidthLimiter fromFaster = faster.createClient(buildInfo).getLimiter();
+        final CifsBandwidthLimiter fromUnlimited = unlimited.createClient(buildInfo).getLimiter();
+        assertSame(fromFaster, fromUnlimited);
+        assertEquals(1000, fromUnlimited.getRate());
+    }
+
+    private Void publishTo(final CifsHostConfiguration first, final CifsHostConfiguration second) throws InterruptedException {
+        final List<CifsHostLimits.Permit> permits = CifsHostConfiguration.acquirePublishes(buildInfo, Arrays.asList(first, second));
+        Thread.sleep(1);
+        for (final CifsHostLimits.Permit permit : permits) permit.release();
+        return null;
+    }
+
     private static class ConfigWithMockFile extends CifsHostConfiguration {
         @Serial
         private static final long serialVersionUID = 1L;
@@ -0,0 +1,179 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifsHostLimitsTest {
+
+    @Test
+    void noLimitDoesNotQueue() throws Exception {
+        final CifsHostLimits limits = CifsHostLimits.forHost("noLimit:445", 0, 0);
+        final CifsHostLimits.Permit publish = limits.acquirePublish("a", 0, () -> { throw new AssertionError("queued"); });
+        final CifsHostLimits.Permit stream = limits.acquireStream("a", 0);
+        assertEquals(1, limits.getActivePublishes());
+        publish.release();
+        stream.release();
+        assertEquals(0, limits.getActivePublishes());
+        assertEquals(0, limits.getActiveStreams());
+    }
+
+    @Test
+    void publishesThatStartedWithoutALimitCountOnceOneIsSet() throws Exception {
+        final CifsHostLimits limits = CifsHostLimits.forHost("limitedLater:445", 0, 0);
+        final CifsHostLimits.Permit early = limits.acquirePublish("early", 0, () -> { });
+        CifsHostLimits.forHost("limitedLater:445", 1, 0);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread late = queue(limits, "late", 0, order);
+
+        assertTrue(order.isEmpty());
+        early.release();
+        late.join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(List.of("late"), order);
+    }
+
+    @Test
+    void equalPrioritiesWaitTheirTurnInOrder() throws Exception {
+        final CifsHostLimits limits = CifsHostLimits.forHost("inOrder:445", 1, 0);
+        final CifsHostLimits.Permit first = limits.acquirePublish("first", 0, () -> { });
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread second = queue(limits, "second", 0, order);
+        final Thread third = queue(limits, "third", 0, order);
+
+        assertTrue(order.isEmpty());
+        first.release();
+        // releasing twice must not let two through
+        first.release();
+        second.join(TimeUnit.SECONDS.toMillis(10));
+        third.join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(List.of("second", "third"), order);
+    }
+
+    @Test
+    void higherPriorityGoesFirst() throws Exception {
+        final CifsHostLimits limits = CifsHostLimits.forHost("priority:445", 1, 0);
+        final CifsHostLimits.Permit first = limits.acquirePublish("first", 0, () -> { });
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread snapshot = queue(limits, "snapshot", 0, order);
+        final Thread release = queue(limits, "release", 10, order);
+        assertEquals(List.of("release", "snapshot"), whoIsWaiting(limits));
+
+        first.release();
+        snapshot.join(TimeUnit.SECONDS.toMillis(10));
+        release.join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(List.of("release", "snapshot"), order);
+    }
+
+    @Test
+    void waitingRaisesThePriority() throws Exception {
+        final CifsHostLimits limits = new CifsHostLimits(1);
+        limits.setLimits(1, 0);
+        limits.acquirePublish("first", 0, () -> { });
+        final List<String> order = new CopyOnWriteArrayList<>();
+        queue(limits, "old", 0, order);
+        Thread.sleep(200);
+        queue(limits, "new", 100, order);
+        final List<CifsHostLimits.Waiting> waiting = limits.getWaitingPublishes();
+        assertEquals("old", waiting.get(0).getWho());
+        assertEquals(0, waiting.get(0).getPriority());
+        assertTrue(waiting.get(0).getEffectivePriority() > 100);
+    }
+
+    @Test
+    void agingDecidesWhoIsGivenThePlace() throws Exception {
+        final CifsHostLimits limits = new CifsHostLimits(1);
+        limits.setLimits(1, 0);
+        final CifsHostLimits.Permit first = limits.acquirePublish("first", 0, () -> { });
+        final List<String> order = new CopyOnWriteArrayList<>();
+        final Thread old = queue(limits, "old", 0, order);
+        Thread.sleep(200);
+        final Thread urgent = queue(limits, "urgent", 100, order);
+        final Thread later = queue(limits, "later", 0, order);
+
+        first.release();
+        old.join(TimeUnit.SECONDS.toMillis(10));
+        urgent.join(TimeUnit.SECONDS.toMillis(10));
+        later.join(TimeUnit.SECONDS.toMillis(10));
+        assertEquals(List.of("old", "urgent", "later"), order);
+    }
+
+    @Test
+    void raisingTheLimitLetsWaitersIn() throws Exception {
+        final CifsHostLimits limits = CifsHostLimits.forHost("raise:445", 1, 0);
+        limits.acquirePublish("first", 0, () -> { });
+        final CountDownLatch queued = new CountDownLatch(1);
+        final Thread waiter = new Thread(() -> {
+            try {
+                limits.acquirePublish("waiter", 0, queued::countDown);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+        assertTrue(queued.await(10, TimeUnit.SECONDS));
+        CifsHostLimits.forHost("raise:445", 2, 0);
+        waiter.join(TimeUnit.SECONDS.toMillis(10));
+        assertFalse(waiter.isAlive());
+        assertEquals(2, limits.getActivePublishes());
+    }
+
+    /**
+     * Start a thread that queues for a publish, records when it gets one and gives it straight back.
+     */
+    private static Thread queue(final CifsHostLimits limits, final String name, final int priority, final List<String> order)
+            throws InterruptedException {
+        final CountDownLatch queued = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            try {
+                final CifsHostLimits.Permit permit = limits.acquirePublish(name, priority, queued::countDown);
+                order.add(name);
+                permit.release();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        assertTrue(queued.await(10, TimeUnit.SECONDS));
+        return thread;
+    }
+
+    private static List<String> whoIsWaiting(final CifsHostLimits limits) {
+        final List<String> who = new ArrayList<>();
+        for (final CifsHostLimits.Waiting waiting : limits.getWaitingPublishes()) who.add(waiting.getWho());
+        return who;
+    }
+
+}
@@ -0,0 +1,134 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+class CifsManifestTest {
+
+    @Test
+    void entriesSurviveARoundTrip() throws Exception {
+        final CifsManifest manifest = CifsManifest.empty();
+        for (int i = 0; i < 1000; i++) manifest.put("dir" + i % 7 + "/file" + i, i, digest(i));
+        final CifsManifest read = roundTrip(manifest);
+        assertEquals(1000, read.size());
+        assertTrue(read.matches("dir3/file500", 500, digest(500)));
+        assertFalse(read.matches("dir3/file500", 501, digest(500)));
+        assertFalse(read.matches("dir3/file500", 500, digest(501)));
+        assertFalse(read.matches("dir3/file1000", 1000, digest(1000)));
+    }
+
+    @Test
+    void changesAreMergedIntoExistingEntries() throws Exception {
+        final CifsManifest manifest = CifsManifest.empty();
+        manifest.put("a", 1, digest(1));
+        manifest.put("b", 2, digest(2));
+        manifest.put("c", 3, digest(3));
+        final CifsManifest read = roundTrip(manifest);
+        read.remove("a");
+        read.put("b", 20, digest(20));
+        read.put("d", 4, digest(4));
+        assertEquals(3, read.size());
+        final CifsManifest merged = roundTrip(read);
+        assertEquals(3, merged.size());
+        assertFalse(merged.matches("a", 1, digest(1)));
+        assertTrue(merged.matches("b", 20, digest(20)));
+        assertTrue(merged.matches("c", 3, digest(3)));
+        assertTrue(merged.matches("d", 4, digest(4)));
+    }
+
+    @Test
+    void retainOnlyDropsEveryOtherEntry() throws Exception {
+        final CifsManifest manifest = CifsManifest.empty();
+        manifest.put("a", 1, digest(1));
+        manifest.put("b", 2, digest(2));
+        final CifsManifest read = roundTrip(manifest);
+        read.put("c", 3, digest(3));
+        read.put("d", 4, digest(4));
+        read.retainOnly(Arrays.asList("b", "d"));
+        final CifsManifest retained = roundTrip(read);
+        assertEquals(2, retained.size());
+        assertTrue(retained.matches("b", 2, digest(2)));
+        assertTrue(retained.matches("d", 4, digest(4)));
+        assertFalse(retained.matches("a", 1, digest(1)));
+        assertFalse(retained.matches("c", 3, digest(3)));
+    }
+
+    @Test
+    void rejectsAnythingElse() {
+        final byte[] bytes = "not a manifest".getBytes();
+        assertThrows(IOException.class, () -> CifsManifest.read(new ByteArrayInputStream(bytes), bytes.length));
+    }
+
+    @Test
+    void rejectsATruncatedManifest() throws Exception {
+        final CifsManifest manifest = CifsManifest.empty();
+        manifest.put("a", 1, digest(1));
+        manifest.put("b", 2, digest(2));
+        final byte[] bytes = write(manifest);
+        final byte[] truncated = Arrays.copyOf(bytes, bytes.length - 10);
+        assertThrows(IOException.class, () -> CifsManifest.read(new ByteArrayInputStream(truncated), truncated.length));
+    }
+
+    @Test
+    void rejectsACorruptEntryCount() throws Exception {
+        final byte[] bytes = write(CifsManifest.empty());
+        for (final int count : new int[] {-1, Integer.MAX_VALUE, 1}) {
+            ByteBuffer.wrap(bytes).putInt(8, count);
+            assertThrows(IOException.class, () -> CifsManifest.read(new ByteArrayInputStream(bytes), bytes.length));
+        }
+    }
+
+    private static CifsManifest roundTrip(final CifsManifest manifest) throws Exception {
+        final byte[] bytes = write(manifest);
+        return CifsManifest.read(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private static byte[] write(final CifsManifest manifest) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        manifest.write(out);
+        return out.toByteArray();
+    }
+
+    private static byte[] digest(final int seed) {
+        final byte[] digest = new byte[CifsManifest.DIGEST_LENGTH];
+        Arrays.fill(digest, (byte) seed);
+        digest[0] = (byte) (seed >> 8);
+        return digest;
+    }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import net.sf.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifsMetricsTest {
+
+    @Test
+    void callsAreCountedInTheBucketOfTheirDuration() {
+        final CifsMetrics.Sample sample = new CifsMetrics.Sample();
+        sample.time(CifsMetrics.Operation.CHANGE_DIRECTORY, TimeUnit.MILLISECONDS.toNanos(1), false);
+        sample.time(CifsMetrics.Operation.CHANGE_DIRECTORY, TimeUnit.MILLISECONDS.toNanos(7), false);
+        sample.time(CifsMetrics.Operation.CHANGE_DIRECTORY, TimeUnit.MINUTES.toNanos(2), true);
+
+        final CifsMetrics.Histogram histogram = sample.getOperation(CifsMetrics.Operation.CHANGE_DIRECTORY);
+        assertEquals(3, histogram.getCount());
+        assertEquals(1, histogram.getFailures());
+        assertEquals(1, histogram.getBucket(0));
+        assertEquals(1, histogram.getBucket(3));
+        assertEquals(1, histogram.getBucket(CifsMetrics.Histogram.BOUNDS.length));
+        assertEquals(TimeUnit.MINUTES.toMillis(2), histogram.getMaxMillis());
+    }
+
+    @Test
+    void aCallThatThrowsIsCountedAsFailed() {
+        final CifsMetrics.Sample sample = new CifsMetrics.Sample();
+        assertThrows(IOException.class, () -> sample.time(CifsMetrics.Operation.DELETE_TREE, () -> {
+            throw new IOException("gone");
+        }));
+        assertEquals(1, sample.getOperation(CifsMetrics.Operation.DELETE_TREE).getFailures());
+    }
+
+    @Test
+    void flushedSamplesAddUpPerHost() {
+        final CifsMetrics metrics = new CifsMetrics();
+        final CifsMetrics.Sink sink = metrics::record;
+        final CifsMetrics.Sample sample = new CifsMetrics.Sample();
+        sample.transferred(100, TimeUnit.MILLISECONDS.toNanos(30));
+        CifsMetrics.flush(sink, "nas", sample);
+        sample.transferred(50, TimeUnit.MILLISECONDS.toNanos(10));
+        CifsMetrics.flush(sink, "nas", sample);
+        // nothing new, nothing recorded
+        CifsMetrics.flush(sink, "other", sample);
+
+        assertTrue(sample.isEmpty());
+        assertNull(metrics.getHost("other"));
+        final JSONObject nas = metrics.toJson().getJSONObject("hosts").getJSONObject("nas");
+        assertEquals(2, nas.getLong("files"));
+        assertEquals(150, nas.getLong("bytes"));
+        final JSONObject transfers = nas.getJSONObject("operations").getJSONObject("transferFile");
+        assertEquals(40, transfers.getLong("totalMillis"));
+        assertEquals(1, transfers.getJSONObject("histogramMillis").getLong("le_10"));
+        assertEquals(1, transfers.getJSONObject("histogramMillis").getLong("le_50"));
+    }
+
+}
@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import hudson.model.FreeStyleProject;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+@WithJenkins
+class CifsPublisherPluginTest {
+
+    @Test
+    void maxConcurrentPublishersSurvivesAConfigRoundTrip(final JenkinsRule jenkinsRule) throws Exception {
+        final FreeStyleProject project = jenkinsRule.createFreeStyleProject();
+        final CifsBuilderPlugin builder = new CifsBuilderPlugin(publishers(), false, false, false, null, null);
+        builder.setMaxConcurrentPublishers(3);
+        final CifsPublisherPlugin publisher = new CifsPublisherPlugin(publishers(), false, false, false, null, null);
+        publisher.setMaxConcurrentPublishers(4);
+        project.getBuildersList().add(builder);
+        project.getPublishersList().add(publisher);
+
+        jenkinsRule.configRoundtrip(project);
+
+        assertEquals(3, project.getBuildersList().get(CifsBuilderPlugin.class).getMaxConcurrentPublishers());
+        assertEquals(4, project.getPublishersList().get(CifsPublisherPlugin.class).getMaxConcurrentPublishers());
+    }
+
+    @Test
+    void maxConcurrentPublishersIsKeptAtLeastOneAndComparedInEquals(final JenkinsRule jenkinsRule) {
+        final CifsPublisherPlugin one = new CifsPublisherPlugin(publishers(), false, false, false, null, null);
+        final CifsPublisherPlugin other = new CifsPublisherPlugin(publishers(), false, false, false, null, null);
+        one.setMaxConcurrentPublishers(0);
+        assertEquals(1, one.getMaxConcurrentPublishers());
+        assertEquals(one, other);
+        assertEquals(one.hashCode(), other.hashCode());
+
+        other.setMaxConcurrentPublishers(2);
+        assertNotEquals(one, other);
+    }
+
+    private static ArrayList<CifsPublisher> publishers() {
+        final ArrayList<CifsTransfer> transfers = new ArrayList<>();
+        transfers.add(new CifsTransfer("**", "", "", "", false, false, false, false, false, ","));
+        final ArrayList<CifsPublisher> publishers = new ArrayList<>();
+        publishers.add(new CifsPublisher("config", false, transfers, false, false, null, null));
+        return publishers;
+    }
+
+}
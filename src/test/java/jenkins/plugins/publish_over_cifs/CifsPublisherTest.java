@@ -32,6 +32,7 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import static jenkins.plugins.publish_over_cifs.CifsPublisher.CTX_KEY_NODE_PROPERTIES_CURRENT;
@@ -103,6 +104,13 @@ class CifsPublisherTest {
         assertNull(buildInfo.get(CTX_KEY_WINS_SERVER));
     }
 
+    @Test
+    void fanOutNamesSkipBlanksDuplicatesAndTheHostItself() {
+        final CifsPublisher publisher = createPublisher();
+        publisher.setFanOut(" second, ,abc,third ,second");
+        assertEquals(Arrays.asList("second", "third"), publisher.getFanOutNames());
+    }
+
     private CifsPublisher createPublisher() {
         return new CifsPublisher("abc", false, new ArrayList<>(0), false, false, null, null);
     }
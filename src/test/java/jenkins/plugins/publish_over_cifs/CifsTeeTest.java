@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+@SuppressWarnings("PMD.SignatureDeclareThrowsException")
+class CifsTeeTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Test
+    void everyBranchReadsTheWholeStream() throws Exception {
+        final byte[] content = randomBytes(100_000);
+        final CifsTee tee = new CifsTee(new ByteArrayInputStream(content), 3, 1024, 2);
+        final Future<byte[]> first = readAll(tee.getBranch(0));
+        final Future<byte[]> second = readAll(tee.getBranch(1));
+        final Future<byte[]> third = readAll(tee.getBranch(2));
+        tee.pump();
+        assertArrayEquals(content, first.get());
+        assertArrayEquals(content, second.get());
+        assertArrayEquals(content, third.get());
+    }
+
+    @Test
+    void closedBranchDoesNotHoldUpTheOthers() throws Exception {
+        final byte[] content = randomBytes(100_000);
+        final CifsTee tee = new CifsTee(new ByteArrayInputStream(content), 2, 1024, 2);
+        tee.getBranch(1).close();
+        final Future<byte[]> first = readAll(tee.getBranch(0));
+        tee.pump();
+        assertArrayEquals(content, first.get());
+    }
+
+    @Test
+    void branchesFailWhenTheSourceFails() throws Exception {
+        final InputStream failing = new InputStream() {
+            private int remaining = 5000;
+            @Override
+            public int read() throws IOException {
+                if (remaining-- == 0) throw new IOException("gone");
+                return 'x';
+            }
+        };
+        final CifsTee tee = new CifsTee(failing, 1, 1024, 16);
+        final Future<byte[]> branch = readAll(tee.getBranch(0));
+        assertThrows(IOException.class, tee::pump);
+        final Exception thrown = assertThrows(Exception.class, branch::get);
+        assertEquals("gone", thrown.getCause().getMessage());
+    }
+
+    private Future<byte[]> readAll(final InputStream branch) {
+        return executor.submit(() -> {
+            try (InputStream in = branch) {
+                return IOUtils.toByteArray(in);
+            }
+        });
+    }
+
+    private static byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+}
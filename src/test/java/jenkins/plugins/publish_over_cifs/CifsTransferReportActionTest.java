@@ -0,0 +1,67 @@
+/*
+ * The MIT License
+ *
+ * Copyright (C) 2010-2011 by Anthony Robinson
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.publish_over_cifs;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CifsTransferReportActionTest {
+
+    @Test
+    void onlyTheSlowestFilesAreKept() {
+        final CifsTransferReportAction.Collector collector = new CifsTransferReportAction.Collector(2);
+        collector.file("a.dll", 10, TimeUnit.MILLISECONDS.toNanos(5));
+        collector.file("b.dll", 20, TimeUnit.MILLISECONDS.toNanos(50));
+        collector.file("c.dll", 30, TimeUnit.MILLISECONDS.toNanos(1));
+        collector.file("d.dll", 40, TimeUnit.MILLISECONDS.toNanos(20));
+
+        final CifsTransferReportAction.TransferSet set = collector.finish("nas", "**/*.dll -> out", 7);
+        assertEquals(4, set.getFiles());
+        assertEquals(100, set.getBytes());
+        assertEquals(7, set.getConnectMillis());
+        final List<String> slowest = new ArrayList<>();
+        for (final CifsTransferReportAction.FileTiming file : set.getSlowest()) slowest.add(file.getPath());
+        assertEquals(List.of("b.dll", "d.dll"), slowest);
+    }
+
+    @Test
+    void totalsAddUpAcrossTransferSets() {
+        final CifsTransferReportAction action = new CifsTransferReportAction();
+        final CifsTransferReportAction.Sink sink = action.sink();
+        sink.record(new CifsTransferReportAction.TransferSet("nas", "a", 3, 3 * 1024 * 1024, 2000, 0, List.of()));
+        sink.record(new CifsTransferReportAction.TransferSet("backup", "a", 1, 1024, 10, 5, List.of()));
+
+        assertEquals(2, action.getTransferSets().size());
+        assertEquals(4, action.getFiles());
+        assertEquals(3 * 1024 * 1024 + 1024, action.getBytes());
+        assertEquals(1.5, action.getTransferSets().get(0).getMegabytesPerSecond());
+    }
+
+}